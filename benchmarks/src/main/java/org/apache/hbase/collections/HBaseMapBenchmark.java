@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the {@link HBaseMap} operations over a map prefilled with
+ * {@link #entries} entries. The default in memory backend measures only the
+ * client side: serialization, compare-and-set loops and allocation. Run with
+ * <code>-p backend=minicluster</code> from a jar built with the minicluster
+ * profile for end to end numbers, and with <code>-t</code> to vary the
+ * number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HBaseMapBenchmark {
+
+  private static final byte[] TABLE = Bytes.toBytes("benchmark");
+  private static final String MINI_CLUSTER_BACKEND = "org.apache.hbase.collections.MiniClusterBackend";
+
+  @Param({ "memory" })
+  public String backend;
+
+  @Param({ "int", "long", "string" })
+  public String keyType;
+
+  @Param({ "long", "string", "bytes" })
+  public String valueType;
+
+  @Param({ "10000" })
+  public int entries;
+
+  private Backend _backend;
+  private HBaseMap<Object, Object> _map;
+  private Object[] _keys;
+  private Object[] _values;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    private final Random _random = new Random();
+
+    int next(int bound) {
+      return _random.nextInt(bound);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    if (backend.equals("memory")) {
+      _backend = new Backend() {
+        @Override
+        public HTableFactory start(byte[] table, byte[] family) {
+          return new InMemoryTableFactory();
+        }
+
+        @Override
+        public void stop() {
+
+        }
+      };
+    } else if (backend.equals("minicluster")) {
+      _backend = (Backend) Class.forName(MINI_CLUSTER_BACKEND).newInstance();
+    } else {
+      throw new IllegalArgumentException("Backend [" + backend + "] not supported.");
+    }
+    HTableFactory tableFactory = _backend.start(TABLE, HBaseMap.DEFAULT_FAMILY);
+    _map = new HBaseMap<Object, Object>(tableFactory, TABLE, HBaseMap.DEFAULT_FAMILY, Bytes.toBytes(keyType + "-"
+        + valueType), HBaseMap.DEFAULT_QUAL, HBaseMap.DEFAULT_SIZE, new SerializerFactory<Object, Object>());
+    _keys = new Object[entries];
+    _values = new Object[entries];
+    Map<Object, Object> map = new HashMap<Object, Object>();
+    for (int i = 0; i < entries; i++) {
+      _keys[i] = newKey(i);
+      _values[i] = newValue(i);
+      map.put(_keys[i], _values[i]);
+    }
+    _map.putAll(map);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    _map.close();
+    _backend.stop();
+  }
+
+  @Benchmark
+  public Object get(Cursor cursor) {
+    return _map.get(_keys[cursor.next(entries)]);
+  }
+
+  @Benchmark
+  public Object put(Cursor cursor) {
+    int i = cursor.next(entries);
+    return _map.put(_keys[i], _values[i]);
+  }
+
+  @Benchmark
+  public Object putIfAbsent(Cursor cursor) {
+    int i = cursor.next(entries);
+    return _map.putIfAbsent(_keys[i], _values[i]);
+  }
+
+  @Benchmark
+  public Object replace(Cursor cursor) {
+    int i = cursor.next(entries);
+    return _map.replace(_keys[i], _values[i]);
+  }
+
+  /**
+   * Removes an entry and puts it back so the map keeps its size.
+   */
+  @Benchmark
+  public Object remove(Cursor cursor) {
+    int i = cursor.next(entries);
+    Object value = _map.remove(_keys[i]);
+    _map.set(_keys[i], _values[i]);
+    return value;
+  }
+
+  @Benchmark
+  public int size() {
+    return _map.size();
+  }
+
+  @Benchmark
+  public void iterate(Blackhole blackhole) {
+    for (Map.Entry<Object, Object> e : _map.entrySet()) {
+      blackhole.consume(e.getKey());
+      blackhole.consume(e.getValue());
+    }
+  }
+
+  private Object newKey(int i) {
+    if (keyType.equals("int")) {
+      return i;
+    } else if (keyType.equals("long")) {
+      return (long) i << 20;
+    } else if (keyType.equals("string")) {
+      return "key-" + i;
+    }
+    throw new IllegalArgumentException("Key type [" + keyType + "] not supported.");
+  }
+
+  private Object newValue(int i) {
+    if (valueType.equals("long")) {
+      return (long) i;
+    } else if (valueType.equals("string")) {
+      return "value-" + i + "-0123456789abcdef";
+    } else if (valueType.equals("bytes")) {
+      byte[] value = new byte[64];
+      Bytes.putInt(value, 0, i);
+      return value;
+    }
+    throw new IllegalArgumentException("Value type [" + valueType + "] not supported.");
+  }
+
+}
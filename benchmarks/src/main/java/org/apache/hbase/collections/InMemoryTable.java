@@ -0,0 +1,604 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Append;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowLock;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.coprocessor.Batch.Call;
+import org.apache.hadoop.hbase.client.coprocessor.Batch.Callback;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.Filter.ReturnCode;
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * An {@link HTableInterface} kept in memory, so benchmarks measure the client
+ * side of the collections without any RPC. Only the latest version of a cell
+ * is kept, mutations of a row are atomic and scans are weakly consistent.
+ * Row locks, appends and coprocessors are not supported.
+ */
+public class InMemoryTable implements HTableInterface {
+
+  private final byte[] _tableName;
+  private final Configuration _configuration;
+  private final ConcurrentSkipListMap<byte[], CellRow> _rows = new ConcurrentSkipListMap<byte[], CellRow>(
+      Bytes.BYTES_COMPARATOR);
+
+  private static class CellRow {
+    final byte[] _row;
+    final NavigableMap<byte[], NavigableMap<byte[], KeyValue>> _families = new TreeMap<byte[], NavigableMap<byte[], KeyValue>>(
+        Bytes.BYTES_COMPARATOR);
+    boolean _removed;
+
+    CellRow(byte[] row) {
+      _row = row;
+    }
+  }
+
+  public InMemoryTable(byte[] tableName, Configuration configuration) {
+    _tableName = tableName;
+    _configuration = configuration;
+  }
+
+  @Override
+  public byte[] getTableName() {
+    return _tableName;
+  }
+
+  @Override
+  public Configuration getConfiguration() {
+    return _configuration;
+  }
+
+  @Override
+  public HTableDescriptor getTableDescriptor() throws IOException {
+    return new HTableDescriptor(_tableName);
+  }
+
+  @Override
+  public boolean exists(Get get) throws IOException {
+    return !get(get).isEmpty();
+  }
+
+  @Override
+  public void batch(List<? extends Row> actions, Object[] results) throws IOException, InterruptedException {
+    for (int i = 0; i < actions.size(); i++) {
+      Row action = actions.get(i);
+      if (action instanceof Get) {
+        results[i] = get((Get) action);
+      } else if (action instanceof Put) {
+        put((Put) action);
+        results[i] = new Result();
+      } else if (action instanceof Delete) {
+        delete((Delete) action);
+        results[i] = new Result();
+      } else if (action instanceof Increment) {
+        results[i] = increment((Increment) action);
+      } else {
+        throw new UnsupportedOperationException("Action [" + action.getClass().getName() + "] not supported.");
+      }
+    }
+  }
+
+  @Override
+  public Object[] batch(List<? extends Row> actions) throws IOException, InterruptedException {
+    Object[] results = new Object[actions.size()];
+    batch(actions, results);
+    return results;
+  }
+
+  @Override
+  public Result get(Get get) throws IOException {
+    CellRow row = _rows.get(get.getRow());
+    if (row == null) {
+      return new Result();
+    }
+    Filter filter = get.getFilter();
+    synchronized (row) {
+      return toResult(row, get.getFamilyMap(), filter);
+    }
+  }
+
+  @Override
+  public Result[] get(List<Get> gets) throws IOException {
+    Result[] results = new Result[gets.size()];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = get(gets.get(i));
+    }
+    return results;
+  }
+
+  @Override
+  public Result getRowOrBefore(byte[] row, byte[] family) throws IOException {
+    Entry<byte[], CellRow> entry = _rows.floorEntry(row);
+    while (entry != null) {
+      CellRow cellRow = entry.getValue();
+      synchronized (cellRow) {
+        NavigableMap<byte[], KeyValue> cells = cellRow._families.get(family);
+        if (cells != null && !cells.isEmpty()) {
+          return new Result(new ArrayList<KeyValue>(cells.values()));
+        }
+      }
+      entry = _rows.lowerEntry(entry.getKey());
+    }
+    return null;
+  }
+
+  @Override
+  public ResultScanner getScanner(final Scan scan) throws IOException {
+    byte[] start = scan.getStartRow();
+    byte[] stop = scan.getStopRow();
+    ConcurrentNavigableMap<byte[], CellRow> rows = _rows;
+    if (start.length != 0) {
+      rows = rows.tailMap(start, true);
+    }
+    if (stop.length != 0) {
+      rows = rows.headMap(stop, false);
+    }
+    Map<byte[], NavigableSet<byte[]>> columns = scan.hasFamilies() ? scan.getFamilyMap() : null;
+    return new Scanner(rows.values().iterator(), columns, scan.getFilter());
+  }
+
+  @Override
+  public ResultScanner getScanner(byte[] family) throws IOException {
+    return getScanner(new Scan().addFamily(family));
+  }
+
+  @Override
+  public ResultScanner getScanner(byte[] family, byte[] qualifier) throws IOException {
+    return getScanner(new Scan().addColumn(family, qualifier));
+  }
+
+  @Override
+  public void put(Put put) throws IOException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      CellRow row = getOrCreate(put.getRow());
+      synchronized (row) {
+        if (row._removed) {
+          continue;
+        }
+        apply(row, put, now);
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void put(List<Put> puts) throws IOException {
+    for (Put put : puts) {
+      put(put);
+    }
+  }
+
+  @Override
+  public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put) throws IOException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      CellRow cellRow = getOrCreate(row);
+      synchronized (cellRow) {
+        if (cellRow._removed) {
+          continue;
+        }
+        if (!matches(cellRow, family, qualifier, value)) {
+          removeIfEmpty(row, cellRow);
+          return false;
+        }
+        apply(cellRow, put, now);
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public void delete(Delete delete) throws IOException {
+    CellRow row = _rows.get(delete.getRow());
+    if (row == null) {
+      return;
+    }
+    synchronized (row) {
+      apply(row, delete);
+      removeIfEmpty(delete.getRow(), row);
+    }
+  }
+
+  @Override
+  public void delete(List<Delete> deletes) throws IOException {
+    for (Delete delete : deletes) {
+      delete(delete);
+    }
+  }
+
+  @Override
+  public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, byte[] value, Delete delete)
+      throws IOException {
+    CellRow cellRow = _rows.get(row);
+    if (cellRow == null) {
+      return value == null || value.length == 0;
+    }
+    synchronized (cellRow) {
+      if (!matches(cellRow, family, qualifier, value)) {
+        return false;
+      }
+      apply(cellRow, delete);
+      removeIfEmpty(row, cellRow);
+      return true;
+    }
+  }
+
+  @Override
+  public void mutateRow(RowMutations rm) throws IOException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      CellRow row = getOrCreate(rm.getRow());
+      synchronized (row) {
+        if (row._removed) {
+          continue;
+        }
+        for (Mutation mutation : rm.getMutations()) {
+          if (mutation instanceof Put) {
+            apply(row, (Put) mutation, now);
+          } else {
+            apply(row, (Delete) mutation);
+          }
+        }
+        removeIfEmpty(rm.getRow(), row);
+        return;
+      }
+    }
+  }
+
+  @Override
+  public Result append(Append append) throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Result increment(Increment increment) throws IOException {
+    long now = System.currentTimeMillis();
+    byte[] rowKey = increment.getRow();
+    while (true) {
+      CellRow row = getOrCreate(rowKey);
+      synchronized (row) {
+        if (row._removed) {
+          continue;
+        }
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        for (Entry<byte[], NavigableMap<byte[], Long>> family : increment.getFamilyMap().entrySet()) {
+          for (Entry<byte[], Long> column : family.getValue().entrySet()) {
+            long value = increment(row, rowKey, family.getKey(), column.getKey(), column.getValue(), now);
+            kvs.add(new KeyValue(rowKey, family.getKey(), column.getKey(), now, Bytes.toBytes(value)));
+          }
+        }
+        return new Result(kvs);
+      }
+    }
+  }
+
+  @Override
+  public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount) throws IOException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      CellRow cellRow = getOrCreate(row);
+      synchronized (cellRow) {
+        if (cellRow._removed) {
+          continue;
+        }
+        return increment(cellRow, row, family, qualifier, amount, now);
+      }
+    }
+  }
+
+  @Override
+  public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, boolean writeToWAL)
+      throws IOException {
+    return incrementColumnValue(row, family, qualifier, amount);
+  }
+
+  @Override
+  public boolean isAutoFlush() {
+    return true;
+  }
+
+  @Override
+  public void flushCommits() throws IOException {
+
+  }
+
+  @Override
+  public void close() throws IOException {
+
+  }
+
+  @Override
+  public RowLock lockRow(byte[] row) throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void unlockRow(RowLock rl) throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public <T extends CoprocessorProtocol> T coprocessorProxy(Class<T> protocol, byte[] row) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public <T extends CoprocessorProtocol, R> Map<byte[], R> coprocessorExec(Class<T> protocol, byte[] startKey,
+      byte[] endKey, Call<T, R> callable) throws IOException, Throwable {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public <T extends CoprocessorProtocol, R> void coprocessorExec(Class<T> protocol, byte[] startKey, byte[] endKey,
+      Call<T, R> callable, Callback<R> callback) throws IOException, Throwable {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void setAutoFlush(boolean autoFlush) {
+
+  }
+
+  @Override
+  public void setAutoFlush(boolean autoFlush, boolean clearBufferOnFail) {
+
+  }
+
+  @Override
+  public long getWriteBufferSize() {
+    return 0;
+  }
+
+  @Override
+  public void setWriteBufferSize(long writeBufferSize) throws IOException {
+
+  }
+
+  private static class Scanner implements ResultScanner {
+    private final Iterator<CellRow> _rows;
+    private final Map<byte[], NavigableSet<byte[]>> _columns;
+    private final Filter _filter;
+
+    Scanner(Iterator<CellRow> rows, Map<byte[], NavigableSet<byte[]>> columns, Filter filter) {
+      _rows = rows;
+      _columns = columns;
+      _filter = filter;
+    }
+
+    @Override
+    public Result next() {
+      while (_rows.hasNext()) {
+        if (_filter != null && _filter.filterAllRemaining()) {
+          return null;
+        }
+        CellRow row = _rows.next();
+        synchronized (row) {
+          Result result = toResult(row, _columns, _filter);
+          if (!result.isEmpty()) {
+            return result;
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public Result[] next(int nbRows) {
+      List<Result> results = new ArrayList<Result>(nbRows);
+      Result result;
+      while (results.size() < nbRows && (result = next()) != null) {
+        results.add(result);
+      }
+      return results.toArray(new Result[results.size()]);
+    }
+
+    @Override
+    public Iterator<Result> iterator() {
+      return new Iterator<Result>() {
+        private Result _next;
+
+        @Override
+        public boolean hasNext() {
+          if (_next == null) {
+            _next = Scanner.this.next();
+          }
+          return _next != null;
+        }
+
+        @Override
+        public Result next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          Result result = _next;
+          _next = null;
+          return result;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+
+    }
+  }
+
+  private CellRow getOrCreate(byte[] rowKey) {
+    CellRow row = _rows.get(rowKey);
+    if (row == null) {
+      CellRow newRow = new CellRow(rowKey);
+      row = _rows.putIfAbsent(rowKey, newRow);
+      if (row == null) {
+        row = newRow;
+      }
+    }
+    return row;
+  }
+
+  private void removeIfEmpty(byte[] rowKey, CellRow row) {
+    if (row._families.isEmpty()) {
+      row._removed = true;
+      _rows.remove(rowKey, row);
+    }
+  }
+
+  private static boolean matches(CellRow row, byte[] family, byte[] qualifier, byte[] value) {
+    KeyValue kv = null;
+    NavigableMap<byte[], KeyValue> cells = row._families.get(family);
+    if (cells != null) {
+      kv = cells.get(qualifier);
+    }
+    if (value == null || value.length == 0) {
+      return kv == null || kv.getValueLength() == 0;
+    }
+    return kv != null
+        && Bytes.equals(value, 0, value.length, kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+  }
+
+  private static void apply(CellRow row, Put put, long now) {
+    for (Entry<byte[], List<KeyValue>> family : put.getFamilyMap().entrySet()) {
+      NavigableMap<byte[], KeyValue> cells = row._families.get(family.getKey());
+      if (cells == null) {
+        cells = new TreeMap<byte[], KeyValue>(Bytes.BYTES_COMPARATOR);
+        row._families.put(family.getKey(), cells);
+      }
+      for (KeyValue kv : family.getValue()) {
+        if (kv.getTimestamp() == HConstants.LATEST_TIMESTAMP) {
+          kv = new KeyValue(kv.getRow(), kv.getFamily(), kv.getQualifier(), now, kv.getValue());
+        }
+        cells.put(kv.getQualifier(), kv);
+      }
+    }
+  }
+
+  private static void apply(CellRow row, Delete delete) {
+    Map<byte[], List<KeyValue>> familyMap = delete.getFamilyMap();
+    if (familyMap.isEmpty()) {
+      row._families.clear();
+      return;
+    }
+    for (Entry<byte[], List<KeyValue>> family : familyMap.entrySet()) {
+      NavigableMap<byte[], KeyValue> cells = row._families.get(family.getKey());
+      if (cells == null) {
+        continue;
+      }
+      for (KeyValue kv : family.getValue()) {
+        if (kv.isDeleteFamily()) {
+          cells.clear();
+        } else {
+          cells.remove(kv.getQualifier());
+        }
+      }
+      if (cells.isEmpty()) {
+        row._families.remove(family.getKey());
+      }
+    }
+  }
+
+  private static long increment(CellRow row, byte[] rowKey, byte[] family, byte[] qualifier, long amount, long now) {
+    NavigableMap<byte[], KeyValue> cells = row._families.get(family);
+    if (cells == null) {
+      cells = new TreeMap<byte[], KeyValue>(Bytes.BYTES_COMPARATOR);
+      row._families.put(family, cells);
+    }
+    KeyValue kv = cells.get(qualifier);
+    long value = amount;
+    if (kv != null) {
+      value += Bytes.toLong(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+    }
+    cells.put(qualifier, new KeyValue(rowKey, family, qualifier, now, Bytes.toBytes(value)));
+    return value;
+  }
+
+  private static Result toResult(CellRow row, Map<byte[], NavigableSet<byte[]>> columns, Filter filter) {
+    List<KeyValue> kvs = new ArrayList<KeyValue>();
+    if (filter != null) {
+      filter.reset();
+      if (filter.filterRowKey(row._row, 0, row._row.length)) {
+        return new Result();
+      }
+    }
+    for (Entry<byte[], NavigableMap<byte[], KeyValue>> family : row._families.entrySet()) {
+      NavigableSet<byte[]> qualifiers = null;
+      if (columns != null && !columns.isEmpty()) {
+        if (!columns.containsKey(family.getKey())) {
+          continue;
+        }
+        qualifiers = columns.get(family.getKey());
+      }
+      for (KeyValue kv : family.getValue().values()) {
+        if (qualifiers != null && !qualifiers.contains(kv.getQualifier())) {
+          continue;
+        }
+        if (filter != null) {
+          ReturnCode code = filter.filterKeyValue(kv);
+          if (code == ReturnCode.NEXT_ROW) {
+            break;
+          } else if (code != ReturnCode.INCLUDE) {
+            continue;
+          }
+          kv = filter.transform(kv);
+        }
+        kvs.add(kv);
+      }
+    }
+    if (filter != null) {
+      filter.filterRow(kvs);
+      if (filter.filterRow()) {
+        return new Result();
+      }
+    }
+    return new Result(kvs);
+  }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Hands out one shared {@link InMemoryTable} per table name.
+ */
+public class InMemoryTableFactory extends HTableFactory {
+
+  private final Configuration _configuration = HBaseConfiguration.create();
+  private final ConcurrentMap<String, InMemoryTable> _tables = new ConcurrentHashMap<String, InMemoryTable>();
+
+  @Override
+  public HTableInterface getInstance(byte[] table) {
+    String name = Bytes.toString(table);
+    InMemoryTable inMemoryTable = _tables.get(name);
+    if (inMemoryTable == null) {
+      InMemoryTable newTable = new InMemoryTable(table, _configuration);
+      inMemoryTable = _tables.putIfAbsent(name, newTable);
+      if (inMemoryTable == null) {
+        inMemoryTable = newTable;
+      }
+    }
+    return inMemoryTable;
+  }
+
+}
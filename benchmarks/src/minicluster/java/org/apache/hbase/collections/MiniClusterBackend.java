@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+
+/**
+ * Runs the benchmarks against a {@link HBaseTestingUtility} mini cluster in
+ * the benchmark JVM.
+ */
+public class MiniClusterBackend implements Backend {
+
+  private HBaseTestingUtility _utility;
+
+  @Override
+  public HTableFactory start(byte[] table, byte[] family) throws Exception {
+    _utility = new HBaseTestingUtility();
+    _utility.startMiniCluster();
+    _utility.createTable(table, family);
+    return HTableFactory.instance(_utility.getConfiguration());
+  }
+
+  @Override
+  public void stop() throws Exception {
+    _utility.shutdownMiniCluster();
+  }
+
+}
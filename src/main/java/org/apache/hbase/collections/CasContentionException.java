@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+/**
+ * Thrown when a compare-and-set on a key kept failing against concurrent
+ * writers until the map's {@link CasRetryPolicy} gave up.
+ */
+public class CasContentionException extends RuntimeException {
+
+  private static final long serialVersionUID = -1893409214137751371L;
+
+  private final int _attempts;
+  private final long _elapsedNanos;
+
+  public CasContentionException(String operation, Object key, int attempts, long elapsedNanos) {
+    super("Gave up " + operation + " of key [" + key + "] after [" + attempts + "] failed compare-and-sets in ["
+        + elapsedNanos / 1000000 + "] ms.");
+    _attempts = attempts;
+    _elapsedNanos = elapsedNanos;
+  }
+
+  public int getAttempts() {
+    return _attempts;
+  }
+
+  public long getElapsedNanos() {
+    return _elapsedNanos;
+  }
+
+}
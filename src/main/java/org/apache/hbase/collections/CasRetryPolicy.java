@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link HBaseMap} retries compare-and-sets that lose against concurrent
+ * writers of the same key. Retries back off exponentially with full jitter,
+ * sleeping a random time up to initialBackoff doubled per failed attempt and
+ * capped at maxBackoff, until maxAttempts compare-and-sets failed or the
+ * deadline passed. Then a {@link CasContentionException} is thrown.
+ */
+public class CasRetryPolicy {
+
+  /**
+   * Retries right away and forever.
+   */
+  public static final CasRetryPolicy UNLIMITED = new CasRetryPolicy(Integer.MAX_VALUE, 0, 0, 0,
+      TimeUnit.MILLISECONDS);
+
+  private static final Random RANDOM = new Random();
+
+  private final int _maxAttempts;
+  private final long _initialBackoffNanos;
+  private final long _maxBackoffNanos;
+  private final long _deadlineNanos;
+
+  /**
+   * @param maxAttempts
+   *          compare-and-sets to try before giving up, at least 1
+   * @param initialBackoff
+   *          upper bound of the first backoff, 0 retries right away
+   * @param maxBackoff
+   *          upper bound of any backoff
+   * @param deadline
+   *          time after which no more attempts are made, 0 for none
+   */
+  public CasRetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, long deadline, TimeUnit unit) {
+    if (maxAttempts < 1 || initialBackoff < 0 || maxBackoff < initialBackoff || deadline < 0) {
+      throw new IllegalArgumentException("Max attempts [" + maxAttempts + "] must be at least 1 and initial backoff ["
+          + initialBackoff + "], max backoff [" + maxBackoff + "] and deadline [" + deadline
+          + "] must not be negative with the max backoff at least the initial one.");
+    }
+    _maxAttempts = maxAttempts;
+    _initialBackoffNanos = unit.toNanos(initialBackoff);
+    _maxBackoffNanos = unit.toNanos(maxBackoff);
+    _deadlineNanos = unit.toNanos(deadline);
+  }
+
+  public int getMaxAttempts() {
+    return _maxAttempts;
+  }
+
+  public long getInitialBackoff(TimeUnit unit) {
+    return unit.convert(_initialBackoffNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public long getMaxBackoff(TimeUnit unit) {
+    return unit.convert(_maxBackoffNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public long getDeadline(TimeUnit unit) {
+    return unit.convert(_deadlineNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Whether another attempt may follow the given number of failed ones,
+   * started elapsedNanos ago and about to back off for backoffNanos.
+   */
+  boolean canRetry(int failedAttempts, long elapsedNanos, long backoffNanos) {
+    if (failedAttempts >= _maxAttempts) {
+      return false;
+    }
+    return _deadlineNanos == 0 || elapsedNanos + backoffNanos < _deadlineNanos;
+  }
+
+  /**
+   * A random backoff up to the initial backoff doubled for every failed
+   * attempt but the first.
+   */
+  long backoffNanos(int failedAttempts) {
+    if (_initialBackoffNanos == 0) {
+      return 0;
+    }
+    int shift = Math.min(failedAttempts - 1, 62);
+    long bound = _initialBackoffNanos << shift;
+    if (bound > _maxBackoffNanos || bound >>> shift != _initialBackoffNanos) {
+      bound = _maxBackoffNanos;
+    }
+    return (long) (RANDOM.nextDouble() * (bound + 1));
+  }
+
+}
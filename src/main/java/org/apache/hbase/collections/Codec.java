@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+/**
+ * Encodes one type of key or value for a {@link SerializerFactory}. Encoded
+ * bytes are prefixed with the codec's tag by the factory, so the tag must be
+ * unique among the codecs registered with it.
+ */
+public interface Codec<T> {
+
+  Class<T> getType();
+
+  byte getTag();
+
+  /**
+   * The number of bytes {@link #write(Object, byte[], int)} will write for the
+   * value, not counting the tag.
+   */
+  int getLength(T value);
+
+  /**
+   * Writes the value into the buffer at the offset, the buffer has at least
+   * {@link #getLength(Object)} bytes left.
+   */
+  void write(T value, byte[] buf, int offset);
+
+  T read(byte[] buf, int offset, int length);
+
+}
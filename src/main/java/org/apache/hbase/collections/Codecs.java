@@ -0,0 +1,459 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The codecs built into {@link SerializerFactory}. Tags below
+ * {@link #MIN_USER_TAG} are reserved for them.
+ */
+public final class Codecs {
+
+  public static final int MIN_USER_TAG = 32;
+
+  public static final Codec<Integer> INT = new Codec<Integer>() {
+    @Override
+    public Class<Integer> getType() {
+      return Integer.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 1;
+    }
+
+    @Override
+    public int getLength(Integer value) {
+      return Bytes.SIZEOF_INT;
+    }
+
+    @Override
+    public void write(Integer value, byte[] buf, int offset) {
+      Bytes.putInt(buf, offset, value);
+    }
+
+    @Override
+    public Integer read(byte[] buf, int offset, int length) {
+      return Bytes.toInt(buf, offset);
+    }
+  };
+
+  public static final Codec<Long> LONG = new Codec<Long>() {
+    @Override
+    public Class<Long> getType() {
+      return Long.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 2;
+    }
+
+    @Override
+    public int getLength(Long value) {
+      return Bytes.SIZEOF_LONG;
+    }
+
+    @Override
+    public void write(Long value, byte[] buf, int offset) {
+      Bytes.putLong(buf, offset, value);
+    }
+
+    @Override
+    public Long read(byte[] buf, int offset, int length) {
+      return Bytes.toLong(buf, offset);
+    }
+  };
+
+  public static final Codec<Float> FLOAT = new Codec<Float>() {
+    @Override
+    public Class<Float> getType() {
+      return Float.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 3;
+    }
+
+    @Override
+    public int getLength(Float value) {
+      return Bytes.SIZEOF_FLOAT;
+    }
+
+    @Override
+    public void write(Float value, byte[] buf, int offset) {
+      Bytes.putFloat(buf, offset, value);
+    }
+
+    @Override
+    public Float read(byte[] buf, int offset, int length) {
+      return Bytes.toFloat(buf, offset);
+    }
+  };
+
+  public static final Codec<Double> DOUBLE = new Codec<Double>() {
+    @Override
+    public Class<Double> getType() {
+      return Double.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 4;
+    }
+
+    @Override
+    public int getLength(Double value) {
+      return Bytes.SIZEOF_DOUBLE;
+    }
+
+    @Override
+    public void write(Double value, byte[] buf, int offset) {
+      Bytes.putDouble(buf, offset, value);
+    }
+
+    @Override
+    public Double read(byte[] buf, int offset, int length) {
+      return Bytes.toDouble(buf, offset);
+    }
+  };
+
+  /**
+   * UTF-8 written straight into the buffer, byte for byte what
+   * {@link Bytes#toBytes(String)} produces, unpaired surrogates included.
+   */
+  public static final Codec<String> STRING = new Codec<String>() {
+    @Override
+    public Class<String> getType() {
+      return String.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 5;
+    }
+
+    @Override
+    public int getLength(String value) {
+      int length = 0;
+      int chars = value.length();
+      for (int i = 0; i < chars; i++) {
+        char c = value.charAt(i);
+        if (c < 0x80) {
+          length++;
+        } else if (c < 0x800) {
+          length += 2;
+        } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+          length += 4;
+          i++;
+        } else if (isSurrogate(c)) {
+          length++;
+        } else {
+          length += 3;
+        }
+      }
+      return length;
+    }
+
+    @Override
+    public void write(String value, byte[] buf, int offset) {
+      int chars = value.length();
+      for (int i = 0; i < chars; i++) {
+        char c = value.charAt(i);
+        if (c < 0x80) {
+          buf[offset++] = (byte) c;
+        } else if (c < 0x800) {
+          buf[offset++] = (byte) (0xC0 | (c >> 6));
+          buf[offset++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, value.charAt(++i));
+          buf[offset++] = (byte) (0xF0 | (cp >> 18));
+          buf[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+          buf[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+          buf[offset++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (isSurrogate(c)) {
+          buf[offset++] = '?';
+        } else {
+          buf[offset++] = (byte) (0xE0 | (c >> 12));
+          buf[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          buf[offset++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
+
+    @Override
+    public String read(byte[] buf, int offset, int length) {
+      return Bytes.toString(buf, offset, length);
+    }
+  };
+
+  public static final Codec<byte[]> BYTES = new Codec<byte[]>() {
+    @Override
+    public Class<byte[]> getType() {
+      return byte[].class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 6;
+    }
+
+    @Override
+    public int getLength(byte[] value) {
+      return value.length;
+    }
+
+    @Override
+    public void write(byte[] value, byte[] buf, int offset) {
+      System.arraycopy(value, 0, buf, offset, value.length);
+    }
+
+    @Override
+    public byte[] read(byte[] buf, int offset, int length) {
+      return Arrays.copyOfRange(buf, offset, offset + length);
+    }
+  };
+
+  /**
+   * Zigzag varint, one byte for values between -64 and 63 and at most five.
+   */
+  public static final Codec<Integer> VARINT = new Codec<Integer>() {
+    @Override
+    public Class<Integer> getType() {
+      return Integer.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 7;
+    }
+
+    @Override
+    public int getLength(Integer value) {
+      return getVarLongLength(zigzag(value));
+    }
+
+    @Override
+    public void write(Integer value, byte[] buf, int offset) {
+      writeVarLong(zigzag(value), buf, offset);
+    }
+
+    @Override
+    public Integer read(byte[] buf, int offset, int length) {
+      return (int) unzigzag(readVarLong(buf, offset));
+    }
+  };
+
+  /**
+   * Zigzag varint, one byte for values between -64 and 63 and at most ten.
+   */
+  public static final Codec<Long> VARLONG = new Codec<Long>() {
+    @Override
+    public Class<Long> getType() {
+      return Long.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 8;
+    }
+
+    @Override
+    public int getLength(Long value) {
+      return getVarLongLength(zigzag(value));
+    }
+
+    @Override
+    public void write(Long value, byte[] buf, int offset) {
+      writeVarLong(zigzag(value), buf, offset);
+    }
+
+    @Override
+    public Long read(byte[] buf, int offset, int length) {
+      return unzigzag(readVarLong(buf, offset));
+    }
+  };
+
+  public static final Codec<Integer> ORDERED_INT = new Codec<Integer>() {
+    @Override
+    public Class<Integer> getType() {
+      return Integer.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 11;
+    }
+
+    @Override
+    public int getLength(Integer value) {
+      return Bytes.SIZEOF_INT;
+    }
+
+    @Override
+    public void write(Integer value, byte[] buf, int offset) {
+      Bytes.putInt(buf, offset, value ^ Integer.MIN_VALUE);
+    }
+
+    @Override
+    public Integer read(byte[] buf, int offset, int length) {
+      return Bytes.toInt(buf, offset) ^ Integer.MIN_VALUE;
+    }
+  };
+
+  public static final Codec<Long> ORDERED_LONG = new Codec<Long>() {
+    @Override
+    public Class<Long> getType() {
+      return Long.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 12;
+    }
+
+    @Override
+    public int getLength(Long value) {
+      return Bytes.SIZEOF_LONG;
+    }
+
+    @Override
+    public void write(Long value, byte[] buf, int offset) {
+      Bytes.putLong(buf, offset, value ^ Long.MIN_VALUE);
+    }
+
+    @Override
+    public Long read(byte[] buf, int offset, int length) {
+      return Bytes.toLong(buf, offset) ^ Long.MIN_VALUE;
+    }
+  };
+
+  /**
+   * Flips the sign bit of positive numbers and all bits of negative ones so
+   * the IEEE 754 bits sort as unsigned bytes.
+   */
+  public static final Codec<Float> ORDERED_FLOAT = new Codec<Float>() {
+    @Override
+    public Class<Float> getType() {
+      return Float.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 13;
+    }
+
+    @Override
+    public int getLength(Float value) {
+      return Bytes.SIZEOF_FLOAT;
+    }
+
+    @Override
+    public void write(Float value, byte[] buf, int offset) {
+      int bits = Float.floatToIntBits(value);
+      Bytes.putInt(buf, offset, bits ^ ((bits >> 31) | Integer.MIN_VALUE));
+    }
+
+    @Override
+    public Float read(byte[] buf, int offset, int length) {
+      int bits = Bytes.toInt(buf, offset);
+      return Float.intBitsToFloat(bits ^ ((~bits >> 31) | Integer.MIN_VALUE));
+    }
+  };
+
+  public static final Codec<Double> ORDERED_DOUBLE = new Codec<Double>() {
+    @Override
+    public Class<Double> getType() {
+      return Double.class;
+    }
+
+    @Override
+    public byte getTag() {
+      return 14;
+    }
+
+    @Override
+    public int getLength(Double value) {
+      return Bytes.SIZEOF_DOUBLE;
+    }
+
+    @Override
+    public void write(Double value, byte[] buf, int offset) {
+      long bits = Double.doubleToLongBits(value);
+      Bytes.putLong(buf, offset, bits ^ ((bits >> 63) | Long.MIN_VALUE));
+    }
+
+    @Override
+    public Double read(byte[] buf, int offset, int length) {
+      long bits = Bytes.toLong(buf, offset);
+      return Double.longBitsToDouble(bits ^ ((~bits >> 63) | Long.MIN_VALUE));
+    }
+  };
+
+  private Codecs() {
+  }
+
+  static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  static int getVarLongLength(long value) {
+    int length = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * Writes seven bits per byte, lowest first, with the high bit set on all
+   * but the last byte, and returns the offset after it.
+   */
+  static int writeVarLong(long value, byte[] buf, int offset) {
+    while ((value & ~0x7FL) != 0) {
+      buf[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf[offset++] = (byte) value;
+    return offset;
+  }
+
+  static long readVarLong(byte[] buf, int offset) {
+    long value = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = buf[offset++];
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static boolean isSurrogate(char c) {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+
+}
@@ -0,0 +1,327 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Future based access to an {@link HBaseMap} from a bounded pool of
+ * threads. Reads are pipelined: {@link #getAsync(Object)} and
+ * {@link #containsKeyAsync(Object)} only queue the key, and each pool thread
+ * drains the queue into multi-gets of up to {@link HBaseMap#getBatchSize()}
+ * keys, so a few threads keep hundreds of reads in flight. Writes are
+ * compare-and-sets that cannot be batched, each runs the blocking map method
+ * on a pool thread.
+ * <p>
+ * At most maxInFlight operations are pending at once, callers block until
+ * one completes. Operations on the same key are not ordered, wait for a
+ * write's future before reading the key back.
+ */
+public class HBaseAsyncMap<K, V> implements Closeable {
+
+  private static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+
+  private final HBaseMap<K, V> _map;
+  private final int _threads;
+  private final int _maxInFlight;
+  private final ListeningExecutorService _executor;
+  private final Semaphore _inFlight;
+  private final Queue<PendingRead> _pendingReads = new ArrayDeque<PendingRead>();
+  private int _readers;
+
+  private final Runnable _release = new Runnable() {
+    @Override
+    public void run() {
+      _inFlight.release();
+    }
+  };
+
+  private final Runnable _reader = new Runnable() {
+    @Override
+    public void run() {
+      read();
+    }
+  };
+
+  public HBaseAsyncMap(HBaseMap<K, V> map) {
+    this(map, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  public HBaseAsyncMap(HBaseMap<K, V> map, int threads, int maxInFlight) {
+    if (threads < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException("Threads [" + threads + "] and max in flight [" + maxInFlight
+          + "] must be at least 1.");
+    }
+    _map = map;
+    _threads = threads;
+    _maxInFlight = maxInFlight;
+    _inFlight = new Semaphore(maxInFlight);
+    final AtomicInteger count = new AtomicInteger();
+    _executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "hbase-async-map-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    }));
+  }
+
+  private class PendingRead {
+    final K _key;
+    final SettableFuture<V> _value;
+    final SettableFuture<Boolean> _contains;
+
+    PendingRead(K key, SettableFuture<V> value, SettableFuture<Boolean> contains) {
+      _key = key;
+      _value = value;
+      _contains = contains;
+    }
+
+    void complete(Map<K, V> values) {
+      if (_value != null) {
+        _value.set(values.get(_key));
+      } else {
+        _contains.set(values.containsKey(_key));
+      }
+    }
+
+    void fail(Throwable t) {
+      if (_value != null) {
+        _value.setException(t);
+      } else {
+        _contains.setException(t);
+      }
+    }
+  }
+
+  public ListenableFuture<V> getAsync(K key) {
+    SettableFuture<V> future = SettableFuture.create();
+    enqueue(new PendingRead(key, future, null), future);
+    return future;
+  }
+
+  /**
+   * Pipelined with the gets, so the value is read as well.
+   */
+  public ListenableFuture<Boolean> containsKeyAsync(K key) {
+    SettableFuture<Boolean> future = SettableFuture.create();
+    enqueue(new PendingRead(key, null, future), future);
+    return future;
+  }
+
+  public ListenableFuture<Map<K, V>> getAllAsync(final Collection<? extends K> keys) {
+    return submit(new Callable<Map<K, V>>() {
+      @Override
+      public Map<K, V> call() {
+        return _map.getAll(keys);
+      }
+    });
+  }
+
+  public ListenableFuture<V> putAsync(final K key, final V value) {
+    return submit(new Callable<V>() {
+      @Override
+      public V call() {
+        return _map.put(key, value);
+      }
+    });
+  }
+
+  public ListenableFuture<Boolean> setAsync(final K key, final V value) {
+    return submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return _map.set(key, value);
+      }
+    });
+  }
+
+  public ListenableFuture<V> putIfAbsentAsync(final K key, final V value) {
+    return submit(new Callable<V>() {
+      @Override
+      public V call() {
+        return _map.putIfAbsent(key, value);
+      }
+    });
+  }
+
+  public ListenableFuture<V> replaceAsync(final K key, final V value) {
+    return submit(new Callable<V>() {
+      @Override
+      public V call() {
+        return _map.replace(key, value);
+      }
+    });
+  }
+
+  public ListenableFuture<Boolean> replaceAsync(final K key, final V oldValue, final V newValue) {
+    return submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return _map.replace(key, oldValue, newValue);
+      }
+    });
+  }
+
+  public ListenableFuture<V> removeAsync(final K key) {
+    return submit(new Callable<V>() {
+      @Override
+      public V call() {
+        return _map.remove(key);
+      }
+    });
+  }
+
+  public ListenableFuture<Boolean> deleteAsync(final K key) {
+    return submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return _map.delete(key);
+      }
+    });
+  }
+
+  public HBaseMap<K, V> getMap() {
+    return _map;
+  }
+
+  /**
+   * The number of operations submitted and not yet completed.
+   */
+  public int getInFlight() {
+    return _maxInFlight - _inFlight.availablePermits();
+  }
+
+  /**
+   * Stops accepting operations, those already submitted still complete. The
+   * map is left open.
+   */
+  @Override
+  public void close() {
+    _executor.shutdown();
+  }
+
+  /**
+   * Waits for the submitted operations to complete after {@link #close()}.
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return _executor.awaitTermination(timeout, unit);
+  }
+
+  private void enqueue(PendingRead read, ListenableFuture<?> future) {
+    acquire();
+    future.addListener(_release, MoreExecutors.sameThreadExecutor());
+    boolean start;
+    synchronized (_pendingReads) {
+      _pendingReads.add(read);
+      start = _readers < _threads;
+      if (start) {
+        _readers++;
+      }
+    }
+    if (start) {
+      try {
+        _executor.execute(_reader);
+      } catch (RejectedExecutionException e) {
+        synchronized (_pendingReads) {
+          _readers--;
+          _pendingReads.remove(read);
+        }
+        read.fail(e);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Drains the queued reads a multi-get at a time until none are left.
+   */
+  private void read() {
+    while (true) {
+      List<PendingRead> batch;
+      synchronized (_pendingReads) {
+        if (_pendingReads.isEmpty()) {
+          _readers--;
+          return;
+        }
+        int size = Math.min(_pendingReads.size(), _map.getBatchSize());
+        batch = new ArrayList<PendingRead>(size);
+        for (int i = 0; i < size; i++) {
+          batch.add(_pendingReads.poll());
+        }
+      }
+      List<K> keys = new ArrayList<K>(batch.size());
+      for (PendingRead read : batch) {
+        keys.add(read._key);
+      }
+      Map<K, V> values;
+      try {
+        values = _map.getAll(keys);
+      } catch (Throwable t) {
+        for (PendingRead read : batch) {
+          read.fail(t);
+        }
+        continue;
+      }
+      for (PendingRead read : batch) {
+        read.complete(values);
+      }
+    }
+  }
+
+  private <T> ListenableFuture<T> submit(Callable<T> callable) {
+    acquire();
+    ListenableFuture<T> future;
+    try {
+      future = _executor.submit(callable);
+    } catch (RejectedExecutionException e) {
+      _inFlight.release();
+      throw e;
+    }
+    future.addListener(_release, MoreExecutors.sameThreadExecutor());
+    return future;
+  }
+
+  private void acquire() {
+    try {
+      _inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+}
@@ -0,0 +1,256 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hbase.collections.MapMetrics.Operation;
+
+/**
+ * A map of counters stored as the plain 8 byte longs HBase increments work
+ * on, so {@link #increment(Object, long)} is a single native increment
+ * instead of a read and compare-and-set loop. The other map operations read
+ * and write the same cells, {@link #aggregate()} does not understand them.
+ * <p>
+ * An increment cannot tell whether it created the key, so there is no size
+ * counter. {@link #size()} counts the keys with a key-only scan, or on the
+ * region servers when the map uses {@link MapEndpoint}.
+ * <p>
+ * With coalescing enabled {@link #add(Object, long)} sums the deltas per key
+ * on the client and sends them as batches of increments. Increments are not
+ * idempotent, a batch that fails part way is retried whole and the deltas
+ * that had landed are applied twice.
+ */
+public class HBaseCounterMap<K> extends HBaseMap<K, Long> {
+
+  private volatile IncrementBuffer<K> _incrementBuffer;
+
+  public HBaseCounterMap(String table, String mapName) {
+    this(HBaseConfiguration.create(), table, mapName);
+  }
+
+  public HBaseCounterMap(Configuration configuration, String table, String mapName) {
+    this(configuration, Bytes.toBytes(table), DEFAULT_FAMILY, Bytes.toBytes(mapName), DEFAULT_QUAL);
+  }
+
+  public HBaseCounterMap(Configuration configuration, byte[] table, byte[] family, byte[] mapName,
+      byte[] defaultQualifier) {
+    super(HTableFactory.instance(configuration), table, family, mapName, defaultQualifier, DEFAULT_SIZE,
+        new SerializerFactory<K, Long>());
+  }
+
+  /**
+   * Adds the delta to the counter and returns the new value, creating the
+   * counter at zero first if needed. Deltas buffered by
+   * {@link #add(Object, long)} are not included.
+   */
+  public long increment(final K key, final long delta) {
+    super.flush();
+    return execute(key, new Command<Long>(Operation.INCREMENT) {
+      @Override
+      Long execute(HTableInterface table) throws IOException {
+        byte[] row = getRow(key);
+        getMetrics().rpc(Operation.INCREMENT);
+        return table.incrementColumnValue(row, getFamily(), getDefaultQualifier(), delta);
+      }
+    });
+  }
+
+  /**
+   * Adds the delta to the counter, only buffering it when coalescing is
+   * enabled.
+   */
+  public void add(K key, long delta) {
+    IncrementBuffer<K> incrementBuffer = _incrementBuffer;
+    if (incrementBuffer != null) {
+      incrementBuffer.add(key, delta);
+    } else {
+      increment(key, delta);
+    }
+  }
+
+  /**
+   * Switches {@link #add(Object, long)} to summing deltas on the client.
+   * They are sent once maxKeys keys have pending deltas, every flushInterval
+   * (when greater than zero) or on {@link #flush()}. Reads on this map
+   * include the pending deltas, other clients do not see them until they
+   * are flushed.
+   */
+  public synchronized void enableCoalescing(int maxKeys, long flushInterval, TimeUnit unit) {
+    if (maxKeys < 1) {
+      throw new IllegalArgumentException("Max keys [" + maxKeys + "] must be at least 1.");
+    }
+    disableCoalescing();
+    _incrementBuffer = new IncrementBuffer<K>(this, maxKeys, flushInterval, unit);
+  }
+
+  /**
+   * Flushes any pending deltas and switches back to immediate increments.
+   */
+  public synchronized void disableCoalescing() {
+    IncrementBuffer<K> incrementBuffer = _incrementBuffer;
+    if (incrementBuffer != null) {
+      incrementBuffer.close();
+      _incrementBuffer = null;
+    }
+  }
+
+  public boolean isCoalescing() {
+    return _incrementBuffer != null;
+  }
+
+  @Override
+  public Long get(Object key) {
+    Long value = super.get(key);
+    IncrementBuffer<K> incrementBuffer = _incrementBuffer;
+    if (incrementBuffer != null) {
+      Long pending = incrementBuffer.lookup(key);
+      if (pending != null) {
+        return value == null ? pending : value + pending;
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    IncrementBuffer<K> incrementBuffer = _incrementBuffer;
+    if (incrementBuffer != null && incrementBuffer.lookup(key) != null) {
+      return true;
+    }
+    return super.containsKey(key);
+  }
+
+  /**
+   * Counts the keys, see the class comment.
+   */
+  @Override
+  public long sizeActual() {
+    flush();
+    if (isUseEndpoint()) {
+      return count();
+    }
+    long size = 0;
+    CloseableIterator<K> iterator = keyIterator();
+    try {
+      while (iterator.hasNext()) {
+        iterator.next();
+        size++;
+      }
+    } finally {
+      iterator.close();
+    }
+    return size;
+  }
+
+  /**
+   * Sends the pending deltas, then any buffered writes.
+   */
+  @Override
+  public void flush() {
+    IncrementBuffer<K> incrementBuffer = _incrementBuffer;
+    if (incrementBuffer != null) {
+      incrementBuffer.flush();
+    }
+    super.flush();
+  }
+
+  @Override
+  public void close() {
+    disableCoalescing();
+    super.close();
+  }
+
+  /**
+   * Sends the deltas in batches, then drops the flushed keys from the near
+   * cache whether or not all batches succeeded.
+   */
+  void writeIncrements(final Map<K, long[]> deltas) {
+    try {
+      writeIncrementBatches(deltas);
+    } finally {
+      invalidateAll(deltas.keySet());
+    }
+  }
+
+  private void writeIncrementBatches(final Map<K, long[]> deltas) {
+    execute(new Command<Void>(Operation.INCREMENT) {
+      @Override
+      Void execute(HTableInterface table) throws IOException {
+        int batchSize = getBatchSize();
+        List<Row> increments = new ArrayList<Row>(Math.min(batchSize, deltas.size()));
+        for (Entry<K, long[]> e : deltas.entrySet()) {
+          long delta = e.getValue()[0];
+          if (delta != 0) {
+            increments.add(new Increment(getRow(e.getKey())).addColumn(getFamily(), getDefaultQualifier(), delta));
+          }
+          if (increments.size() >= batchSize) {
+            incrementBatch(table, increments);
+          }
+        }
+        if (!increments.isEmpty()) {
+          incrementBatch(table, increments);
+        }
+        return null;
+      }
+    });
+  }
+
+  private void incrementBatch(HTableInterface table, List<Row> increments) throws IOException {
+    try {
+      getMetrics().rpc(Operation.INCREMENT);
+      table.batch(increments);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    increments.clear();
+  }
+
+  /**
+   * Counters have no size counter to update.
+   */
+  @Override
+  protected void updateSize(long sizeChange) {
+  }
+
+  @Override
+  protected byte[] encodeValue(Long value) {
+    return Bytes.toBytes(value);
+  }
+
+  @Override
+  protected Long decodeValue(byte[] buf, int offset, int length) {
+    if (length != Bytes.SIZEOF_LONG) {
+      throw new IllegalStateException("Counter cell has [" + length + "] bytes instead of " + Bytes.SIZEOF_LONG
+          + ".");
+    }
+    return Bytes.toLong(buf, offset);
+  }
+
+}
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A map of long keys to long values whose primitive methods encode straight
+ * into row and cell bytes, without boxing. The bytes are those a
+ * {@link HBaseMap} of boxed longs writes, so either can open the map and the
+ * {@link java.util.Map} methods keep working.
+ * <p>
+ * The write-behind buffer and the near cache hold boxed keys, with either
+ * enabled the primitive methods go through the boxed ones.
+ */
+public class HBaseLongLongMap extends HBaseMap<Long, Long> {
+
+  private volatile long _noEntryValue;
+
+  public HBaseLongLongMap(String table, String mapName) {
+    this(HBaseConfiguration.create(), table, mapName);
+  }
+
+  public HBaseLongLongMap(Configuration configuration, String table, String mapName) {
+    this(configuration, Bytes.toBytes(table), DEFAULT_FAMILY, Bytes.toBytes(mapName), DEFAULT_QUAL, DEFAULT_SIZE);
+  }
+
+  public HBaseLongLongMap(Configuration configuration, byte[] table, byte[] family, byte[] mapName,
+      byte[] defaultQualifier, byte[] sizeQualifier) {
+    super(configuration, table, family, mapName, defaultQualifier, sizeQualifier);
+  }
+
+  /**
+   * See {@link HBaseMap#HBaseMap(Configuration, String, String, int)}.
+   */
+  public HBaseLongLongMap(Configuration configuration, String table, String mapName, int saltBuckets) {
+    super(configuration, table, mapName, saltBuckets);
+  }
+
+  /**
+   * Returned by the primitive methods for missing keys, 0 by default.
+   */
+  public long getNoEntryValue() {
+    return _noEntryValue;
+  }
+
+  public void setNoEntryValue(long noEntryValue) {
+    _noEntryValue = noEntryValue;
+  }
+
+  public long get(long key) {
+    if (isBoxed()) {
+      return toLong(get((Object) key));
+    }
+    return toLong(getCell(getRow(key)));
+  }
+
+  public boolean containsKey(long key) {
+    if (isBoxed()) {
+      return containsKey((Object) key);
+    }
+    return containsCell(getRow(key));
+  }
+
+  /**
+   * Returns the previous value, {@link #getNoEntryValue()} if there was none.
+   */
+  public long put(long key, long value) {
+    if (isBoxed()) {
+      return toLong(put((Long) key, (Long) value));
+    }
+    return toLong(putCell(getRow(key), getSerializerFactory().toLongBytes(value)));
+  }
+
+  /**
+   * See {@link HBaseMap#set(Object, Object)}.
+   */
+  public boolean set(long key, long value) {
+    if (isBoxed()) {
+      return set((Long) key, (Long) value);
+    }
+    return setCell(getRow(key), getSerializerFactory().toLongBytes(value));
+  }
+
+  /**
+   * Returns the removed value, {@link #getNoEntryValue()} if there was none.
+   */
+  public long remove(long key) {
+    if (isBoxed()) {
+      return toLong(remove((Object) key));
+    }
+    return toLong(removeCell(getRow(key)));
+  }
+
+  /**
+   * See {@link HBaseMap#delete(Object)}.
+   */
+  public boolean delete(long key) {
+    if (isBoxed()) {
+      return delete((Long) key);
+    }
+    return deleteCell(getRow(key));
+  }
+
+  private boolean isBoxed() {
+    return isWriteBehind() || isNearCache();
+  }
+
+  private byte[] getRow(long key) {
+    return getSerializerFactory().getLongRow(key, getMapName());
+  }
+
+  private long toLong(Long value) {
+    return value == null ? _noEntryValue : value;
+  }
+
+  private long toLong(byte[] value) {
+    if (value == null || value.length == 0) {
+      return _noEntryValue;
+    }
+    return getSerializerFactory().toLong(value, 0, value.length);
+  }
+
+}
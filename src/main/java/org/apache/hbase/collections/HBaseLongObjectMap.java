@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A map of long keys whose primitive methods encode the key straight into
+ * the row, without boxing. Values are encoded as in any {@link HBaseMap}, see
+ * {@link HBaseLongLongMap} for the rest.
+ */
+public class HBaseLongObjectMap<V> extends HBaseMap<Long, V> {
+
+  public HBaseLongObjectMap(String table, String mapName) {
+    this(HBaseConfiguration.create(), table, mapName);
+  }
+
+  public HBaseLongObjectMap(Configuration configuration, String table, String mapName) {
+    this(configuration, Bytes.toBytes(table), DEFAULT_FAMILY, Bytes.toBytes(mapName), DEFAULT_QUAL, DEFAULT_SIZE);
+  }
+
+  public HBaseLongObjectMap(Configuration configuration, byte[] table, byte[] family, byte[] mapName,
+      byte[] defaultQualifier, byte[] sizeQualifier) {
+    super(configuration, table, family, mapName, defaultQualifier, sizeQualifier);
+  }
+
+  /**
+   * See {@link HBaseMap#HBaseMap(Configuration, String, String, int)}.
+   */
+  public HBaseLongObjectMap(Configuration configuration, String table, String mapName, int saltBuckets) {
+    super(configuration, table, mapName, saltBuckets);
+  }
+
+  public V get(long key) {
+    if (isBoxed()) {
+      return get((Object) key);
+    }
+    return toValue(getCell(getRow(key)));
+  }
+
+  public boolean containsKey(long key) {
+    if (isBoxed()) {
+      return containsKey((Object) key);
+    }
+    return containsCell(getRow(key));
+  }
+
+  public V put(long key, V value) {
+    if (isBoxed()) {
+      return put((Long) key, value);
+    }
+    return toValue(putCell(getRow(key), encodeValue(value)));
+  }
+
+  /**
+   * See {@link HBaseMap#set(Object, Object)}.
+   */
+  public boolean set(long key, V value) {
+    if (isBoxed()) {
+      return set((Long) key, value);
+    }
+    return setCell(getRow(key), encodeValue(value));
+  }
+
+  public V remove(long key) {
+    if (isBoxed()) {
+      return remove((Object) key);
+    }
+    return toValue(removeCell(getRow(key)));
+  }
+
+  /**
+   * See {@link HBaseMap#delete(Object)}.
+   */
+  public boolean delete(long key) {
+    if (isBoxed()) {
+      return delete((Long) key);
+    }
+    return deleteCell(getRow(key));
+  }
+
+  private boolean isBoxed() {
+    return isWriteBehind() || isNearCache();
+  }
+
+  private byte[] getRow(long key) {
+    return getSerializerFactory().getLongRow(key, getMapName());
+  }
+
+  private V toValue(byte[] value) {
+    return value == null ? null : decodeValue(value, 0, value.length);
+  }
+
+}
@@ -1,46 +1,111 @@
 package org.apache.hbase.collections;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.filter.Filter;
-import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hbase.collections.MapMetrics.Operation;
+import org.apache.hbase.collections.NearCache.CachedValue;
 
-public class HBaseMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+public class HBaseMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, Closeable {
 
-  private static final byte[] DEFAULT_FAMILY = Bytes.toBytes("map");
-  private static final byte[] DEFAULT_SIZE = HConstants.EMPTY_BYTE_ARRAY;
-  private static final byte[] DEFAULT_QUAL = HConstants.EMPTY_BYTE_ARRAY;
+  protected static final byte[] DEFAULT_FAMILY = Bytes.toBytes("map");
+  protected static final byte[] DEFAULT_SIZE = HConstants.EMPTY_BYTE_ARRAY;
+  protected static final byte[] DEFAULT_QUAL = HConstants.EMPTY_BYTE_ARRAY;
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+  private static final int MAX_SIZE_STRIPES = 256;
+  private static final byte[] SIZE_STRIPES_SUFFIX = Bytes.toBytes(".stripes");
+  private static final int DEFAULT_SCANNER_CACHING = 100;
 
   private final HTableFactory _tableFactory;
-  private SerializerFactory<K, V> _serializerFactory = new SerializerFactory<K, V>();
-  private byte[] _table;
-  private byte[] _family;
-  private byte[] _defaultQualifier;
-  private byte[] _mapName;
-  private byte[] _sizeQualifier;
+  private final SerializerFactory<K, V> _serializerFactory;
+  private final byte[] _table;
+  private final byte[] _family;
+  private final byte[] _defaultQualifier;
+  private final byte[] _mapName;
+  private final byte[] _sizeQualifier;
+  private final byte[] _sizeStripesQualifier;
+  private int _batchSize = DEFAULT_BATCH_SIZE;
+  private volatile WriteBehindBuffer<K, V> _writeBuffer;
+  private volatile NearCache<K, V> _nearCache;
+  private volatile int _sizeStripes = 1;
+  private volatile long _sizeCacheNanos;
+  private final Object _sizeCacheLock = new Object();
+  private long _cachedSize;
+  private long _cachedSizeTime;
+  private boolean _cachedSizeValid;
+  private int _scannerCaching = DEFAULT_SCANNER_CACHING;
+  private int _scannerBatch = -1;
+  private boolean _scannerPrefetch = true;
+  private int _scanParallelism = Runtime.getRuntime().availableProcessors();
+  private MapMetrics _metrics = new MapMetrics();
+  private volatile CasRetryPolicy _casRetryPolicy = CasRetryPolicy.UNLIMITED;
+  private volatile boolean _useEndpoint;
+  private volatile byte[] _tombstoneQualifier;
+  private ObjectName _objectName;
 
   static abstract class Command<T> {
+    final Operation _operation;
+
+    Command(Operation operation) {
+      _operation = operation;
+    }
+
     abstract T execute(HTableInterface table) throws IOException;
   }
 
+  public interface EntryVisitor<K, V> {
+    void visit(K key, V value);
+  }
+
+  public interface EntryReducer<K, V, R> {
+    R initial();
+
+    R reduce(R result, K key, V value);
+
+    R combine(R left, R right);
+  }
+
   public HBaseMap(String table, String mapName) {
     this(Bytes.toBytes(table), Bytes.toBytes(mapName));
   }
@@ -63,12 +128,52 @@ public class HBaseMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K
 
   public HBaseMap(Configuration configuration, byte[] table, byte[] family, byte[] mapName, byte[] defaultQualifier,
       byte[] sizeQualifier) {
+    this(HTableFactory.instance(configuration), table, family, mapName, defaultQualifier, sizeQualifier,
+        new SerializerFactory<K, V>());
+  }
+
+  /**
+   * A map whose rows are spread over the given number of salt buckets, see
+   * {@link SerializerFactory#SerializerFactory(boolean, int)}.
+   */
+  public HBaseMap(Configuration configuration, String table, String mapName, int saltBuckets) {
+    this(HTableFactory.instance(configuration), Bytes.toBytes(table), DEFAULT_FAMILY, Bytes.toBytes(mapName),
+        DEFAULT_QUAL, DEFAULT_SIZE, new SerializerFactory<K, V>(false, saltBuckets));
+  }
+
+  protected HBaseMap(HTableFactory tableFactory, byte[] table, byte[] family, byte[] mapName, byte[] defaultQualifier,
+      byte[] sizeQualifier, SerializerFactory<K, V> serializerFactory) {
     _table = table;
     _family = family;
     _mapName = mapName;
     _defaultQualifier = defaultQualifier;
     _sizeQualifier = sizeQualifier;
-    _tableFactory = HTableFactory.instance(configuration);
+    _sizeStripesQualifier = Bytes.add(sizeQualifier, SIZE_STRIPES_SUFFIX);
+    _tableFactory = tableFactory;
+    _serializerFactory = serializerFactory;
+    tableFactory.warmup(table);
+  }
+
+  /**
+   * Creates a map over the same rows sharing the settings, write-behind
+   * buffer and near cache the given map has at this point.
+   */
+  protected HBaseMap(HBaseMap<K, V> map) {
+    this(map._tableFactory, map._table, map._family, map._mapName, map._defaultQualifier, map._sizeQualifier,
+        map._serializerFactory);
+    _batchSize = map._batchSize;
+    _writeBuffer = map._writeBuffer;
+    _nearCache = map._nearCache;
+    _sizeStripes = map._sizeStripes;
+    _sizeCacheNanos = map._sizeCacheNanos;
+    _scannerCaching = map._scannerCaching;
+    _scannerBatch = map._scannerBatch;
+    _scannerPrefetch = map._scannerPrefetch;
+    _scanParallelism = map._scanParallelism;
+    _metrics = map._metrics;
+    _casRetryPolicy = map._casRetryPolicy;
+    _useEndpoint = map._useEndpoint;
+    _tombstoneQualifier = map._tombstoneQualifier;
   }
 
   @Override
@@ -77,297 +182,2193 @@ public class HBaseMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K
 
       @Override
       public Iterator<java.util.Map.Entry<K, V>> iterator() {
-        final HTableInterface htable = _tableFactory.getInstance(_table);
-        final ResultScanner scanner;
-        try {
-          Scan scan = new Scan();
-          scan.addFamily(_family);
-          byte[] rowPrefix = _serializerFactory.getRowPrefix(_mapName);
-          scan.setStartRow(rowPrefix);
-          Filter filter = new PrefixFilter(rowPrefix);
-          scan.setFilter(filter);
-          scanner = htable.getScanner(scan);
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
-        final Iterator<Result> iterator = scanner.iterator();
-        return new Iterator<Map.Entry<K, V>>() {
-
-          private K _key;
-          private V _value;
+        return entryIterator();
+      }
+
+      @Override
+      public int size() {
+        return HBaseMap.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        if (!(o instanceof Map.Entry)) {
+          return false;
+        }
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+        V value = get(e.getKey());
+        return value != null && value.equals(e.getValue());
+      }
+
+      @Override
+      public boolean remove(Object o) {
+        if (!(o instanceof Map.Entry)) {
+          return false;
+        }
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+        return HBaseMap.this.remove(e.getKey(), e.getValue());
+      }
+
+      @Override
+      public boolean removeAll(Collection<?> c) {
+        boolean changed = false;
+        for (Object o : c) {
+          changed |= remove(o);
+        }
+        return changed;
+      }
+
+      @Override
+      public boolean retainAll(final Collection<?> c) {
+        return removeMatching(new EntryMatcher<K, V>() {
+          @Override
+          boolean matches(Map.Entry<K, V> e) {
+            return !c.contains(e);
+          }
+        }, false);
+      }
 
+      @Override
+      public void clear() {
+        HBaseMap.this.clear();
+      }
+    };
+  }
+
+  /**
+   * Iterates the values, the bulk removals scan the entries and remove the
+   * matching ones with compare-and-set removes.
+   */
+  @Override
+  public Collection<V> values() {
+    return new AbstractCollection<V>() {
+
+      @Override
+      public Iterator<V> iterator() {
+        final CloseableIterator<Map.Entry<K, V>> iterator = entryIterator();
+        return new CloseableIterator<V>() {
           @Override
           public boolean hasNext() {
             return iterator.hasNext();
           }
 
           @Override
-          public java.util.Map.Entry<K, V> next() {
-            Result result = iterator.next();
-            _key = getKey(result);
-            _value = getValue(result);
-            return new Entry<K, V>() {
+          public V next() {
+            return iterator.next().getValue();
+          }
 
-              @Override
-              public K getKey() {
-                return _key;
-              }
+          @Override
+          public void remove() {
+            iterator.remove();
+          }
 
-              @Override
-              public V getValue() {
-                return _value;
-              }
+          @Override
+          public void close() {
+            iterator.close();
+          }
+        };
+      }
 
-              @Override
-              public V setValue(V value) {
-                return HBaseMap.this.put(_key, value);
-              }
+      @Override
+      public int size() {
+        return HBaseMap.this.size();
+      }
 
-              @Override
-              public String toString() {
-                return "[\"" + _key + "\",\"" + _value + "\"]";
-              }
+      @Override
+      public boolean contains(Object o) {
+        return containsValue(o);
+      }
 
-            };
+      @Override
+      public boolean remove(final Object o) {
+        return removeMatching(new EntryMatcher<K, V>() {
+          @Override
+          boolean matches(Map.Entry<K, V> e) {
+            return o == null ? e.getValue() == null : o.equals(e.getValue());
           }
+        }, true);
+      }
 
+      @Override
+      public boolean removeAll(final Collection<?> c) {
+        return removeMatching(new EntryMatcher<K, V>() {
           @Override
-          public void remove() {
-            HBaseMap.this.remove(_key);
+          boolean matches(Map.Entry<K, V> e) {
+            return c.contains(e.getValue());
           }
+        }, false);
+      }
 
+      @Override
+      public boolean retainAll(final Collection<?> c) {
+        return removeMatching(new EntryMatcher<K, V>() {
           @Override
-          protected void finalize() throws Throwable {
-            scanner.close();
-            htable.close();
+          boolean matches(Map.Entry<K, V> e) {
+            return !c.contains(e.getValue());
           }
-
-        };
+        }, false);
       }
 
       @Override
-      public int size() {
-        return HBaseMap.this.size();
+      public void clear() {
+        HBaseMap.this.clear();
       }
     };
   }
 
-  @Override
-  public int size() {
-    long sizeActual = sizeActual();
-    if (sizeActual > Integer.MAX_VALUE) {
-      return Integer.MAX_VALUE;
+  static abstract class EntryMatcher<K, V> {
+    abstract boolean matches(Map.Entry<K, V> e);
+  }
+
+  /**
+   * Removes the scanned entries the matcher selects, only the first one when
+   * asked, and closes the scanner however the scan ends.
+   */
+  private boolean removeMatching(EntryMatcher<K, V> matcher, boolean first) {
+    CloseableIterator<Map.Entry<K, V>> iterator = entryIterator();
+    boolean changed = false;
+    try {
+      while (iterator.hasNext()) {
+        Map.Entry<K, V> e = iterator.next();
+        if (matcher.matches(e) && remove(e.getKey(), e.getValue())) {
+          changed = true;
+          if (first) {
+            return true;
+          }
+        }
+      }
+      return changed;
+    } finally {
+      iterator.close();
     }
-    return (int) sizeActual;
   }
 
-  public long sizeActual() {
-    return execute(new Command<Long>() {
-      @Override
-      Long execute(HTableInterface table) throws IOException {
-        Get get = new Get(_mapName).addColumn(_family, _sizeQualifier);
-        Result result = table.get(get);
-        if (result.getRow() == null) {
-          return 0L;
+  /**
+   * Backs removeAll of the key views with batched deletes, no scan needed.
+   */
+  @SuppressWarnings("unchecked")
+  boolean removeKeys(Collection<?> keys) {
+    return !removeAll((Collection<? extends K>) keys).isEmpty();
+  }
+
+  /**
+   * Backs retainAll of the key views, deleting the keys not in the collection
+   * while they are scanned and closing the scanner however the scan ends.
+   */
+  boolean retainKeys(Collection<?> keys) {
+    CloseableIterator<K> iterator = keyIterator();
+    boolean changed = false;
+    try {
+      while (iterator.hasNext()) {
+        K key = iterator.next();
+        if (!keys.contains(key) && delete(key)) {
+          changed = true;
         }
-        byte[] value = result.getValue(_family, _sizeQualifier);
-        return Bytes.toLong(value);
       }
-    });
+      return changed;
+    } finally {
+      iterator.close();
+    }
   }
 
+  /**
+   * Scans the entries until the value is found, the scanner is closed when
+   * the scan stops early. Also backs {@code values().contains}.
+   */
   @Override
-  public boolean containsKey(Object key) {
-    V v = get(key);
-    if (v == null) {
+  public boolean containsValue(Object value) {
+    CloseableIterator<Map.Entry<K, V>> iterator = entryIterator();
+    try {
+      while (iterator.hasNext()) {
+        V v = iterator.next().getValue();
+        if (value == null ? v == null : value.equals(v)) {
+          return true;
+        }
+      }
       return false;
-    } else {
-      return true;
+    } finally {
+      iterator.close();
     }
   }
 
-  @SuppressWarnings("unchecked")
+  /**
+   * Compares the entries like {@link AbstractMap#equals(Object)}, but closes
+   * the scanner when a difference ends the scan early.
+   */
   @Override
-  public V remove(Object k) {
-    final K key = (K) k;
-    return execute(new Command<V>() {
-      @Override
-      V execute(HTableInterface table) throws IOException {
-        Get get = getGet(key);
-        Delete delete = getDelete(key);
-        while (true) {
-          Result result = table.get(get);
-          byte[] val;
-          long sizeChange;
-          if (result.getRow() == null) {
-            return null;
-          } else {
-            val = result.getValue(_family, _defaultQualifier);
-            sizeChange = -1;
-          }
-          boolean checkAndDelete = table.checkAndDelete(get.getRow(), _family, _defaultQualifier, val, delete);
-          if (checkAndDelete) {
-            updateSize(sizeChange);
-            return getValue(result);
-          }
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof Map)) {
+      return false;
+    }
+    Map<?, ?> m = (Map<?, ?>) o;
+    if (m.size() != size()) {
+      return false;
+    }
+    CloseableIterator<Map.Entry<K, V>> iterator = entryIterator();
+    try {
+      while (iterator.hasNext()) {
+        Map.Entry<K, V> e = iterator.next();
+        V value = e.getValue();
+        if (value == null ? m.get(e.getKey()) != null || !m.containsKey(e.getKey())
+            : !value.equals(m.get(e.getKey()))) {
+          return false;
         }
       }
-    });
+      return true;
+    } catch (ClassCastException e) {
+      return false;
+    } catch (NullPointerException e) {
+      return false;
+    } finally {
+      iterator.close();
+    }
   }
 
-  @SuppressWarnings("unchecked")
   @Override
-  public V get(final Object k) {
-    final K key = (K) k;
-    return execute(new Command<V>() {
-      @Override
-      V execute(HTableInterface table) throws IOException {
-        Get get = getGet(key);
-        Result result = table.get(get);
-        return getValue(result);
-      }
-    });
+  public int hashCode() {
+    return super.hashCode();
   }
 
+  /**
+   * Iterates the keys with a key-only scan, values are never transferred.
+   */
   @Override
-  public V put(final K key, final V value) {
-    return execute(new Command<V>() {
+  public Set<K> keySet() {
+    return new AbstractSet<K>() {
+
       @Override
-      V execute(HTableInterface table) throws IOException {
-        Get get = getGet(key);
-        Put put = getPut(key, value);
-        while (true) {
-          Result result = table.get(get);
-          byte[] val;
-          long sizeChange;
-          if (result.getRow() == null) {
-            val = null;
-            sizeChange = 1;
-          } else {
-            val = result.getValue(_family, _defaultQualifier);
-            sizeChange = 0;
-          }
-          boolean checkAndPut = table.checkAndPut(get.getRow(), _family, _defaultQualifier, val, put);
-          if (checkAndPut) {
-            updateSize(sizeChange);
-            return getValue(result);
-          }
-        }
+      public Iterator<K> iterator() {
+        return keyIterator();
       }
-    });
-  }
 
-  @Override
-  public V putIfAbsent(final K key, final V value) {
-    return execute(new Command<V>() {
       @Override
-      V execute(HTableInterface table) throws IOException {
-        Get get = getGet(key);
-        Put put = getPut(key, value);
-        byte[] val = null;
-        boolean checkAndPut = table.checkAndPut(get.getRow(), _family, _defaultQualifier, val, put);
-        if (checkAndPut) {
-          updateSize(1l);
-          return null;
-        } else {
-          return getValue(table.get(get));
-        }
+      public int size() {
+        return HBaseMap.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return containsKey(o);
       }
-    });
-  }
 
-  @Override
-  public boolean remove(final Object key, final Object value) {
-    return execute(new Command<Boolean>() {
       @SuppressWarnings("unchecked")
       @Override
-      Boolean execute(HTableInterface table) throws IOException {
-        byte[] val = _serializerFactory.toBytes(value);
-        Delete delete = getDelete((K) key);
-        boolean checkAndDelete = table.checkAndDelete(delete.getRow(), _family, _defaultQualifier, val, delete);
-        if (checkAndDelete) {
-          updateSize(-1l);
-        }
-        return checkAndDelete;
+      public boolean remove(Object o) {
+        return delete((K) o);
       }
-    });
-  }
 
-  @Override
-  public boolean replace(final K key, final V oldValue, final V newValue) {
-    return execute(new Command<Boolean>() {
       @Override
-      Boolean execute(HTableInterface table) throws IOException {
-        Put put = getPut(key, newValue);
-        byte[] val = _serializerFactory.toBytes(oldValue);
-        return table.checkAndPut(put.getRow(), _family, _defaultQualifier, val, put);
+      public boolean removeAll(Collection<?> c) {
+        return removeKeys(c);
       }
-    });
-  }
 
-  @Override
-  public V replace(final K key, final V value) {
-    return execute(new Command<V>() {
       @Override
-      V execute(HTableInterface table) throws IOException {
-        Get get = getGet(key);
-        Put put = getPut(key, value);
-        while (true) {
-          Result result = table.get(get);
-          byte[] val;
-          if (result.getRow() == null) {
-            return null;
-          } else {
-            val = result.getValue(_family, _defaultQualifier);
-          }
-          boolean checkAndPut = table.checkAndPut(get.getRow(), _family, _defaultQualifier, val, put);
-          if (checkAndPut) {
-            return getValue(result);
-          }
-        }
+      public boolean retainAll(Collection<?> c) {
+        return retainKeys(c);
       }
-    });
-  }
 
-  protected void updateSize(final long sizeChange) {
-    execute(new Command<Void>() {
       @Override
-      Void execute(HTableInterface table) throws IOException {
-        table.incrementColumnValue(_mapName, _family, _sizeQualifier, sizeChange);
-        return null;
+      public void clear() {
+        HBaseMap.this.clear();
       }
-    });
+    };
   }
 
-  protected K getKey(Result result) {
-    return _serializerFactory.getKey(result, _mapName, _family, _defaultQualifier);
+  /**
+   * Streams the keys of the map in row order like {@link #entryIterator()},
+   * but the region servers strip the values before sending the rows.
+   */
+  public CloseableIterator<K> keyIterator() {
+    flush();
+    Scan scan = newScan();
+    scan.setFilter(new KeyOnlyFilter());
+    try {
+      return new MapScanIterator<K>(scan) {
+        @Override
+        protected K toObject(Result result) {
+          return getKey(result);
+        }
+      };
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
-  protected V getValue(Result result) {
-    return _serializerFactory.getValue(result, _mapName, _family, _defaultQualifier);
+  /**
+   * Streams the entries of the map in row order. The iterator closes itself
+   * once exhausted, callers that stop early should close it.
+   */
+  public CloseableIterator<Map.Entry<K, V>> entryIterator() {
+    flush();
+    return entryIterator(newScan());
   }
 
-  protected Get getGet(K key) {
-    return _serializerFactory.getGet(key, _mapName, _family, _defaultQualifier);
+  /**
+   * Streams the entries of one of the splits returned by {@link #getSplits()}.
+   */
+  public CloseableIterator<Map.Entry<K, V>> entryIterator(Pair<byte[], byte[]> split) {
+    Scan scan = newScan();
+    scan.setStartRow(split.getFirst());
+    scan.setStopRow(split.getSecond());
+    return entryIterator(scan);
   }
 
-  protected Put getPut(K key, V value) {
-    return _serializerFactory.getPut(key, value, _mapName, _family, _defaultQualifier);
+  /**
+   * Streams the entries written since the given cell timestamp, and when
+   * tombstones are enabled the keys deleted since, in row order. Only the
+   * latest change of each key is returned. Pass the watermark of the returned
+   * iterator to the next call to continue from where this one ends; cells
+   * written at or after the watermark are left for that call. Cell timestamps
+   * come from the region servers, so a client expecting clock skew should
+   * pass an earlier time and accept seeing some changes twice.
+   */
+  public MapChanges<K, V> entriesModifiedSince(long since) {
+    flush();
+    long watermark = System.currentTimeMillis();
+    Scan scan = newScan();
+    byte[] tombstoneQualifier = _tombstoneQualifier;
+    if (tombstoneQualifier != null) {
+      scan.addColumn(_family, tombstoneQualifier);
+    }
+    // the value and the tombstone of a row must come in the same result
+    scan.setBatch(-1);
+    scan.setCacheBlocks(false);
+    try {
+      scan.setTimeRange(since, Math.max(since, watermark));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return new MapChanges<K, V>(this, resultIterator(scan), tombstoneQualifier, watermark);
   }
 
-  protected Delete getDelete(K key) {
-    return _serializerFactory.getDelete(key, _mapName, _family, _defaultQualifier);
+  /**
+   * Deletes the tombstones written before the given time and returns how
+   * many there were.
+   */
+  public long purgeTombstones(final long before) {
+    final byte[] tombstoneQualifier = _tombstoneQualifier;
+    if (tombstoneQualifier == null) {
+      return 0;
+    }
+    return execute(new Command<Long>(Operation.PURGE_TOMBSTONES) {
+      @Override
+      Long execute(HTableInterface table) throws IOException {
+        Scan scan = new Scan(getStartRow(), getStopRow());
+        scan.addColumn(_family, tombstoneQualifier);
+        scan.setFilter(new KeyOnlyFilter());
+        scan.setTimeRange(0, before);
+        scan.setCaching(_batchSize);
+        scan.setCacheBlocks(false);
+        _metrics.rpc(Operation.PURGE_TOMBSTONES);
+        ResultScanner scanner = table.getScanner(scan);
+        long purged = 0;
+        try {
+          List<Delete> deletes = new ArrayList<Delete>(_batchSize);
+          for (Result result : scanner) {
+            // a tombstone rewritten since is kept
+            deletes.add(new Delete(result.getRow()).deleteColumns(_family, tombstoneQualifier, before - 1));
+            if (deletes.size() >= _batchSize) {
+              purged += deletes.size();
+              _metrics.rpc(Operation.PURGE_TOMBSTONES);
+              table.delete(deletes);
+              deletes.clear();
+            }
+          }
+          if (!deletes.isEmpty()) {
+            purged += deletes.size();
+            _metrics.rpc(Operation.PURGE_TOMBSTONES);
+            table.delete(deletes);
+          }
+        } finally {
+          scanner.close();
+        }
+        return purged;
+      }
+    });
+  }
+
+  /**
+   * Splits the rows of the map at the region boundaries of the table and, for
+   * salted maps, at the salt bucket boundaries. Each split is a start row and
+   * an exclusive stop row.
+   */
+  public List<Pair<byte[], byte[]>> getSplits() {
+    Pair<byte[][], byte[][]> startEndKeys;
+    try {
+      startEndKeys = _tableFactory.getStartEndKeys(_table);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    byte[][][] ranges;
+    if (_serializerFactory.getSaltBuckets() == 0) {
+      ranges = new byte[][][] { { getStartRow(), getStopRow() } };
+    } else {
+      ranges = _serializerFactory.getBucketRanges(_mapName);
+    }
+    List<Pair<byte[], byte[]>> splits = new ArrayList<Pair<byte[], byte[]>>();
+    byte[][] startKeys = startEndKeys.getFirst();
+    byte[][] endKeys = startEndKeys.getSecond();
+    for (byte[][] range : ranges) {
+      byte[] start = range[0];
+      byte[] stop = range[1];
+      for (int i = 0; i < startKeys.length; i++) {
+        byte[] splitStart = Bytes.compareTo(startKeys[i], start) > 0 ? startKeys[i] : start;
+        byte[] splitStop = endKeys[i].length != 0 && Bytes.compareTo(endKeys[i], stop) < 0 ? endKeys[i] : stop;
+        if (Bytes.compareTo(splitStart, splitStop) < 0) {
+          splits.add(new Pair<byte[], byte[]>(splitStart, splitStop));
+        }
+      }
+    }
+    return splits;
+  }
+
+  /**
+   * Visits every entry, scanning up to {@link #getScanParallelism()} splits at
+   * a time on the shared executor. The visitor is called from several threads
+   * at once.
+   */
+  public void parallelForEach(EntryVisitor<? super K, ? super V> visitor) {
+    parallelForEach(visitor, _tableFactory.getExecutor());
+  }
+
+  public void parallelForEach(final EntryVisitor<? super K, ? super V> visitor, ExecutorService executor) {
+    runSplits(new EntrySplitTask<Void>() {
+      @Override
+      Void run(Iterator<Map.Entry<K, V>> iterator) {
+        while (iterator.hasNext()) {
+          Map.Entry<K, V> e = iterator.next();
+          visitor.visit(e.getKey(), e.getValue());
+        }
+        return null;
+      }
+    }, executor);
+  }
+
+  /**
+   * Reduces every entry, each split is reduced on its own starting from
+   * {@link EntryReducer#initial()} and the partial results are combined in
+   * the calling thread.
+   */
+  public <R> R reduce(EntryReducer<? super K, ? super V, R> reducer) {
+    return reduce(reducer, _tableFactory.getExecutor());
+  }
+
+  public <R> R reduce(final EntryReducer<? super K, ? super V, R> reducer, ExecutorService executor) {
+    List<R> partials = runSplits(new EntrySplitTask<R>() {
+      @Override
+      R run(Iterator<Map.Entry<K, V>> iterator) {
+        R result = reducer.initial();
+        while (iterator.hasNext()) {
+          Map.Entry<K, V> e = iterator.next();
+          result = reducer.reduce(result, e.getKey(), e.getValue());
+        }
+        return result;
+      }
+    }, executor);
+    R result = reducer.initial();
+    for (R partial : partials) {
+      result = reducer.combine(result, partial);
+    }
+    return result;
+  }
+
+  public int getScanParallelism() {
+    return _scanParallelism;
+  }
+
+  public void setScanParallelism(int scanParallelism) {
+    if (scanParallelism < 1) {
+      throw new IllegalArgumentException("Scan parallelism [" + scanParallelism + "] must be at least 1.");
+    }
+    _scanParallelism = scanParallelism;
+  }
+
+  abstract class SplitTask<R> {
+    abstract R run(Pair<byte[], byte[]> split);
+  }
+
+  abstract class EntrySplitTask<R> extends SplitTask<R> {
+    @Override
+    R run(Pair<byte[], byte[]> split) {
+      CloseableIterator<Map.Entry<K, V>> iterator = entryIterator(split);
+      try {
+        return run(iterator);
+      } finally {
+        iterator.close();
+      }
+    }
+
+    abstract R run(Iterator<Map.Entry<K, V>> iterator);
+  }
+
+  private <R> List<R> runSplits(final SplitTask<R> task, ExecutorService executor) {
+    flush();
+    final List<Pair<byte[], byte[]>> splits = getSplits();
+    final AtomicInteger nextSplit = new AtomicInteger();
+    int workers = Math.min(_scanParallelism, splits.size());
+    List<Future<List<R>>> futures = new ArrayList<Future<List<R>>>(workers);
+    for (int w = 0; w < workers; w++) {
+      futures.add(executor.submit(new Callable<List<R>>() {
+        @Override
+        public List<R> call() throws Exception {
+          List<R> results = new ArrayList<R>();
+          int split;
+          while ((split = nextSplit.getAndIncrement()) < splits.size()) {
+            results.add(task.run(splits.get(split)));
+          }
+          return results;
+        }
+      }));
+    }
+    List<R> results = new ArrayList<R>(splits.size());
+    try {
+      for (Future<List<R>> future : futures) {
+        results.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      nextSplit.set(splits.size());
+      for (Future<List<R>> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  private CloseableIterator<Map.Entry<K, V>> entryIterator(Scan scan) {
+    try {
+      return new MapScanIterator<Map.Entry<K, V>>(scan) {
+        @Override
+        protected Map.Entry<K, V> toObject(Result result) {
+          return new MapEntry(getKey(result), getValue(result));
+        }
+      };
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Streams the raw rows of the scan, for readers that keep the encoded form.
+   */
+  CloseableIterator<Result> resultIterator(Scan scan) {
+    try {
+      return new MapScanIterator<Result>(scan) {
+        @Override
+        protected Result toObject(Result result) {
+          return result;
+        }
+      };
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the raw row, empty if it does not exist.
+   */
+  Result getResult(final byte[] row) {
+    return execute(new Command<Result>(Operation.GET) {
+      @Override
+      Result execute(HTableInterface table) throws IOException {
+        Get get = new Get(row);
+        get.addColumn(_family, _defaultQualifier);
+        _metrics.rpc(Operation.GET);
+        return table.get(get);
+      }
+    });
+  }
+
+  abstract class MapScanIterator<T> extends ScanIterator<T> {
+
+    MapScanIterator(Scan scan) throws IOException {
+      super(checkoutScanTable(), scan, _scannerPrefetch ? _tableFactory.getExecutor() : null);
+    }
+
+    @Override
+    protected void fetched(int rows, long nanos) {
+      _metrics.rpc(Operation.SCAN);
+      _metrics.record(Operation.SCAN, nanos);
+      _metrics.scannerRows(rows);
+    }
+
+    @Override
+    public void remove() {
+      delete(getKey(lastResult()));
+    }
+  }
+
+  private HTableInterface checkoutScanTable() {
+    long start = System.nanoTime();
+    HTableInterface table = _tableFactory.getScanInstance(_table);
+    _metrics.tableCheckout(System.nanoTime() - start);
+    _metrics.rpc(Operation.SCAN);
+    return table;
+  }
+
+  /**
+   * The first row of the entries covered by this map.
+   */
+  protected byte[] getStartRow() {
+    return _serializerFactory.getRowPrefix(_mapName);
+  }
+
+  /**
+   * The exclusive stop row of the entries covered by this map.
+   */
+  protected byte[] getStopRow() {
+    return _serializerFactory.getRowPrefixStop(_mapName);
+  }
+
+  protected Scan newScan() {
+    Scan scan = new Scan(getStartRow(), getStopRow());
+    scan.addColumn(_family, _defaultQualifier);
+    scan.setCaching(_scannerCaching);
+    if (_scannerBatch > 0) {
+      scan.setBatch(_scannerBatch);
+    }
+    return scan;
+  }
+
+  class MapEntry extends SimpleEntry<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    MapEntry(K key, V value) {
+      super(key, value);
+    }
+
+    @Override
+    public V setValue(V value) {
+      HBaseMap.this.put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+
+  @Override
+  public int size() {
+    long sizeActual = sizeActual();
+    if (sizeActual > Integer.MAX_VALUE) {
+      return Integer.MAX_VALUE;
+    }
+    return (int) sizeActual;
+  }
+
+  /**
+   * Returns the size counter, summing all stripes with a single multi-get.
+   * When another client spread the counter over more stripes than this map
+   * knows, the map adopts their count and reads the rest. When a size cache
+   * interval is set the value may be that old, adjusted by the writes made
+   * through this map since.
+   */
+  public long sizeActual() {
+    flush();
+    long sizeCacheNanos = _sizeCacheNanos;
+    if (sizeCacheNanos > 0) {
+      synchronized (_sizeCacheLock) {
+        if (_cachedSizeValid && System.nanoTime() - _cachedSizeTime < sizeCacheNanos) {
+          return _cachedSize;
+        }
+      }
+    }
+    long size = execute(new Command<Long>(Operation.SIZE) {
+      @Override
+      Long execute(HTableInterface table) throws IOException {
+        int sizeStripes = _sizeStripes;
+        List<Get> gets = getSizeGets(0, sizeStripes);
+        gets.get(0).addColumn(_family, _sizeStripesQualifier);
+        _metrics.rpc(Operation.SIZE);
+        Result[] results = table.get(gets);
+        long size = sumSize(results);
+        int stored = getStoredSizeStripes(results[0]);
+        if (stored > sizeStripes) {
+          raiseSizeStripes(stored);
+          _metrics.rpc(Operation.SIZE);
+          size += sumSize(table.get(getSizeGets(sizeStripes, stored)));
+        }
+        return size;
+      }
+    });
+    if (sizeCacheNanos > 0) {
+      synchronized (_sizeCacheLock) {
+        _cachedSize = size;
+        _cachedSizeTime = System.nanoTime();
+        _cachedSizeValid = true;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Counts the entries on the region servers with {@link MapEndpoint}, which
+   * must be loaded on the table. Unlike {@link #sizeActual()} this does not
+   * trust the size counter, each region scans its rows and returns only its
+   * count.
+   */
+  public long count() {
+    flush();
+    return count(getStartRow(), getStopRow());
+  }
+
+  /**
+   * Counts the entries and reduces their numeric values on the region
+   * servers with {@link MapEndpoint}, each region returns only its partial
+   * aggregate.
+   */
+  public MapAggregate aggregate() {
+    flush();
+    final byte[] startRow = getStartRow();
+    final byte[] stopRow = getStopRow();
+    return execute(new Command<MapAggregate>(Operation.AGGREGATE) {
+      @Override
+      MapAggregate execute(HTableInterface table) throws IOException {
+        Map<byte[], MapAggregate> partials = coprocessorExec(table, startRow, stopRow,
+            new Batch.Call<MapProtocol, MapAggregate>() {
+              @Override
+              public MapAggregate call(MapProtocol instance) throws IOException {
+                return instance.aggregate(startRow, stopRow, _family, _defaultQualifier);
+              }
+            });
+        MapAggregate aggregate = new MapAggregate();
+        for (MapAggregate partial : partials.values()) {
+          aggregate.combine(partial);
+        }
+        return aggregate;
+      }
+    });
+  }
+
+  /**
+   * Recounts all the entries of the map with {@link MapEndpoint} and rewrites
+   * the size counter to match, for when it drifted after a client died
+   * between a write and its size update. Returns the new size. Writes made
+   * while the count runs may be lost from the counter, so repair while the
+   * map is quiet.
+   */
+  public long repairSize() {
+    flush();
+    byte[] startRow = _serializerFactory.getRowPrefix(_mapName);
+    long count = count(startRow, _serializerFactory.getRowPrefixStop(_mapName));
+    writeSize(count);
+    return count;
+  }
+
+  private List<Get> getSizeGets(int from, int to) {
+    List<Get> gets = new ArrayList<Get>(to - from);
+    for (int i = from; i < to; i++) {
+      gets.add(new Get(_serializerFactory.getSizeRow(_mapName, i)).addColumn(_family, _sizeQualifier));
+    }
+    return gets;
+  }
+
+  private long sumSize(Result[] results) {
+    long size = 0;
+    for (Result result : results) {
+      byte[] value = result.getValue(_family, _sizeQualifier);
+      if (value != null) {
+        size += Bytes.toLong(value);
+      }
+    }
+    return size;
+  }
+
+  /**
+   * The stripe count stored on the first size row by
+   * {@link #setSizeStripes(int)}, one when none was set.
+   */
+  private int getStoredSizeStripes(Result result) {
+    byte[] value = result.getValue(_family, _sizeStripesQualifier);
+    return value == null ? 1 : Bytes.toInt(value);
+  }
+
+  private int readSizeStripes(HTableInterface table) throws IOException {
+    Get get = new Get(_serializerFactory.getSizeRow(_mapName, 0)).addColumn(_family, _sizeStripesQualifier);
+    _metrics.rpc(Operation.UPDATE_SIZE);
+    return getStoredSizeStripes(table.get(get));
+  }
+
+  private synchronized void raiseSizeStripes(int sizeStripes) {
+    if (sizeStripes > _sizeStripes) {
+      _sizeStripes = sizeStripes;
+    }
+  }
+
+  /**
+   * Overwrites the size counter, the first stripe gets the size and all
+   * others stored for the map zero.
+   */
+  void writeSize(final long size) {
+    execute(new Command<Void>(Operation.UPDATE_SIZE) {
+      @Override
+      Void execute(HTableInterface table) throws IOException {
+        int sizeStripes = Math.max(_sizeStripes, readSizeStripes(table));
+        List<Put> puts = new ArrayList<Put>(sizeStripes);
+        for (int i = 0; i < sizeStripes; i++) {
+          byte[] row = _serializerFactory.getSizeRow(_mapName, i);
+          puts.add(new Put(row).add(_family, _sizeQualifier, Bytes.toBytes(i == 0 ? size : 0l)));
+        }
+        _metrics.rpc(Operation.UPDATE_SIZE);
+        table.put(puts);
+        return null;
+      }
+    });
+    synchronized (_sizeCacheLock) {
+      _cachedSizeValid = false;
+    }
+  }
+
+  private long count(final byte[] startRow, final byte[] stopRow) {
+    return execute(new Command<Long>(Operation.AGGREGATE) {
+      @Override
+      Long execute(HTableInterface table) throws IOException {
+        Map<byte[], Long> partials = coprocessorExec(table, startRow, stopRow, new Batch.Call<MapProtocol, Long>() {
+          @Override
+          public Long call(MapProtocol instance) throws IOException {
+            return instance.count(startRow, stopRow, _family, _defaultQualifier);
+          }
+        });
+        long count = 0;
+        for (Long partial : partials.values()) {
+          count += partial;
+        }
+        return count;
+      }
+    });
+  }
+
+  private <R> Map<byte[], R> coprocessorExec(HTableInterface table, byte[] startRow, byte[] stopRow,
+      Batch.Call<MapProtocol, R> call) throws IOException {
+    Map<byte[], R> partials;
+    try {
+      partials = table.coprocessorExec(MapProtocol.class, startRow, stopRow, call);
+    } catch (IOException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IOException(t);
+    }
+    for (int i = 0; i < partials.size(); i++) {
+      _metrics.rpc(Operation.AGGREGATE);
+    }
+    return partials;
+  }
+
+  /**
+   * Checks the write-behind buffer and near cache first, then asks the
+   * region server whether the row exists without transferring the value.
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  public boolean containsKey(Object k) {
+    final K key = (K) k;
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      Object buffered = writeBuffer.lookup(key);
+      if (buffered == WriteBehindBuffer.REMOVED) {
+        return false;
+      } else if (buffered != WriteBehindBuffer.NOT_BUFFERED) {
+        return true;
+      }
+    }
+    NearCache<K, V> nearCache = _nearCache;
+    if (nearCache != null && nearCache.get(key) != null) {
+      return true;
+    }
+    return execute(new Command<Boolean>(Operation.CONTAINS_KEY) {
+      @Override
+      Boolean execute(HTableInterface table) throws IOException {
+        Get get = getGet(key);
+        _metrics.rpc(Operation.CONTAINS_KEY);
+        return table.exists(get);
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V remove(Object k) {
+    final K key = (K) k;
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      writeBuffer.remove(key);
+      invalidate(key);
+      return null;
+    }
+    return execute(key, new Command<V>(Operation.REMOVE) {
+      @Override
+      V execute(HTableInterface table) throws IOException {
+        Get get = getGet(key);
+        if (_useEndpoint) {
+          return toValue(removeEndpoint(table, get.getRow()));
+        }
+        Result result = removeCas(table, key, get, getDelete(key));
+        return result == null ? null : getValue(result);
+      }
+    });
+  }
+
+  private byte[] removeEndpoint(HTableInterface table, byte[] row) throws IOException {
+    byte[] previous = endpoint(table, row, Operation.REMOVE).remove(row, _family, _defaultQualifier,
+        getStripeRow(), _sizeQualifier);
+    if (previous != null) {
+      updateCachedSize(-1l);
+      writeTombstone(table, row, Operation.REMOVE);
+    }
+    return previous;
+  }
+
+  /**
+   * Reads the row and deletes it if unchanged, retrying until the delete
+   * goes through. Returns the deleted row, null if there was none.
+   */
+  private Result removeCas(HTableInterface table, Object key, Get get, Delete delete) throws IOException {
+    int attempts = 0;
+    long start = System.nanoTime();
+    while (true) {
+      _metrics.rpc(Operation.REMOVE);
+      Result result = table.get(get);
+      if (result.getRow() == null) {
+        return null;
+      }
+      byte[] val = result.getValue(_family, _defaultQualifier);
+      _metrics.rpc(Operation.REMOVE);
+      boolean checkAndDelete = table.checkAndDelete(get.getRow(), _family, _defaultQualifier, val, delete);
+      if (checkAndDelete) {
+        updateSize(-1l);
+        writeTombstone(table, get.getRow(), Operation.REMOVE);
+        return result;
+      }
+      casFailed(Operation.REMOVE, key, ++attempts, start);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V get(final Object k) {
+    final K key = (K) k;
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      Object buffered = writeBuffer.lookup(key);
+      if (buffered == WriteBehindBuffer.REMOVED) {
+        return null;
+      } else if (buffered != WriteBehindBuffer.NOT_BUFFERED) {
+        return (V) buffered;
+      }
+    }
+    final NearCache<K, V> nearCache = _nearCache;
+    final long version;
+    if (nearCache != null) {
+      CachedValue<V> cachedValue = nearCache.get(key);
+      if (cachedValue != null) {
+        return cachedValue._value;
+      }
+      version = nearCache.version(key);
+    } else {
+      version = 0;
+    }
+    return execute(new Command<V>(Operation.GET) {
+      @Override
+      V execute(HTableInterface table) throws IOException {
+        Get get = getGet(key);
+        _metrics.rpc(Operation.GET);
+        Result result = table.get(get);
+        V value = getValue(result);
+        if (nearCache != null && result.getRow() != null) {
+          KeyValue kv = result.getColumnLatest(_family, _defaultQualifier);
+          int weight = kv.getRowLength() + kv.getValueLength();
+          nearCache.put(key, value, weight, version);
+        }
+        return value;
+      }
+    });
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      writeBuffer.put(key, value);
+      invalidate(key);
+      return null;
+    }
+    return execute(key, new Command<V>(Operation.PUT) {
+      @Override
+      V execute(HTableInterface table) throws IOException {
+        if (_useEndpoint) {
+          byte[] row = getRow(key);
+          return toValue(putEndpoint(table, row, toBytes(row, value)));
+        }
+        return getValue(putCas(table, key, getGet(key), getPut(key, value)));
+      }
+    });
+  }
+
+  private byte[] putEndpoint(HTableInterface table, byte[] row, byte[] value) throws IOException {
+    byte[] previous = endpoint(table, row, Operation.PUT).put(row, _family, _defaultQualifier, value,
+        getStripeRow(), _sizeQualifier);
+    if (previous == null) {
+      updateCachedSize(1l);
+    }
+    return previous;
+  }
+
+  /**
+   * Reads the row and writes it if unchanged, retrying until the write goes
+   * through. Returns the row as it was before, empty if it did not exist.
+   */
+  private Result putCas(HTableInterface table, Object key, Get get, Put put) throws IOException {
+    int attempts = 0;
+    long start = System.nanoTime();
+    while (true) {
+      _metrics.rpc(Operation.PUT);
+      Result result = table.get(get);
+      byte[] val;
+      long sizeChange;
+      if (result.getRow() == null) {
+        val = null;
+        sizeChange = 1;
+      } else {
+        val = result.getValue(_family, _defaultQualifier);
+        sizeChange = 0;
+      }
+      _metrics.rpc(Operation.PUT);
+      boolean checkAndPut = table.checkAndPut(get.getRow(), _family, _defaultQualifier, val, put);
+      if (checkAndPut) {
+        if (sizeChange != 0) {
+          updateSize(sizeChange);
+        }
+        return result;
+      }
+      casFailed(Operation.PUT, key, ++attempts, start);
+    }
+  }
+
+  /**
+   * Like {@link #put(Object, Object)} but without reading or returning the
+   * previous value. Optimistically inserts first, so a new key costs a single
+   * check-and-put plus the size update. Returns true if the key was new. In
+   * write-behind mode the write is only buffered and false is returned.
+   */
+  public boolean set(final K key, final V value) {
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      writeBuffer.put(key, value);
+      invalidate(key);
+      return false;
+    }
+    return execute(key, new Command<Boolean>(Operation.SET) {
+      @Override
+      Boolean execute(HTableInterface table) throws IOException {
+        return setCas(table, key, getGet(key), getPut(key, value));
+      }
+    });
+  }
+
+  private boolean setCas(HTableInterface table, Object key, Get get, Put put) throws IOException {
+    byte[] val = null;
+    boolean retry = false;
+    int attempts = 0;
+    long start = System.nanoTime();
+    while (true) {
+      _metrics.rpc(Operation.SET);
+      boolean checkAndPut = table.checkAndPut(get.getRow(), _family, _defaultQualifier, val, put);
+      if (checkAndPut) {
+        if (val == null) {
+          updateSize(1l);
+          return true;
+        }
+        return false;
+      }
+      // the optimistic insert failing is expected for existing keys
+      if (retry) {
+        casFailed(Operation.SET, key, ++attempts, start);
+      }
+      retry = true;
+      _metrics.rpc(Operation.SET);
+      Result result = table.get(get);
+      if (result.getRow() == null) {
+        val = null;
+      } else {
+        val = result.getValue(_family, _defaultQualifier);
+      }
+    }
+  }
+
+  /**
+   * Like {@link #remove(Object)} but without deserializing or returning the
+   * previous value. Returns true if the key existed. In write-behind mode the
+   * remove is only buffered and false is returned.
+   */
+  public boolean delete(final K key) {
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      writeBuffer.remove(key);
+      invalidate(key);
+      return false;
+    }
+    return execute(key, new Command<Boolean>(Operation.DELETE) {
+      @Override
+      Boolean execute(HTableInterface table) throws IOException {
+        return deleteCas(table, key, getGet(key), getDelete(key));
+      }
+    });
+  }
+
+  private boolean deleteCas(HTableInterface table, Object key, Get get, Delete delete) throws IOException {
+    int attempts = 0;
+    long start = System.nanoTime();
+    while (true) {
+      _metrics.rpc(Operation.DELETE);
+      Result result = table.get(get);
+      if (result.getRow() == null) {
+        return false;
+      }
+      byte[] val = result.getValue(_family, _defaultQualifier);
+      _metrics.rpc(Operation.DELETE);
+      boolean checkAndDelete = table.checkAndDelete(get.getRow(), _family, _defaultQualifier, val, delete);
+      if (checkAndDelete) {
+        updateSize(-1l);
+        writeTombstone(table, get.getRow(), Operation.DELETE);
+        return true;
+      }
+      casFailed(Operation.DELETE, key, ++attempts, start);
+    }
+  }
+
+  /**
+   * The encoded value of the row, null if it does not exist. This and the
+   * other cell operations below work on encoded rows and values for the
+   * primitive maps, bypassing the write-behind buffer and the near cache.
+   */
+  byte[] getCell(byte[] row) {
+    byte[] value = getResult(row).getValue(_family, _defaultQualifier);
+    if (value != null) {
+      _metrics.deserialized(value.length);
+    }
+    return value;
+  }
+
+  boolean containsCell(final byte[] row) {
+    return execute(new Command<Boolean>(Operation.CONTAINS_KEY) {
+      @Override
+      Boolean execute(HTableInterface table) throws IOException {
+        _metrics.rpc(Operation.CONTAINS_KEY);
+        return table.exists(new Get(row).addColumn(_family, _defaultQualifier));
+      }
+    });
+  }
+
+  /**
+   * Writes the encoded value and returns the previous one, null if there was
+   * none.
+   */
+  byte[] putCell(final byte[] row, final byte[] value) {
+    _metrics.serialized(row.length + value.length);
+    return execute(new Command<byte[]>(Operation.PUT) {
+      @Override
+      byte[] execute(HTableInterface table) throws IOException {
+        if (_useEndpoint) {
+          return putEndpoint(table, row, value);
+        }
+        Result result = putCas(table, row, new Get(row).addColumn(_family, _defaultQualifier),
+            new Put(row).add(_family, _defaultQualifier, value));
+        return result.getValue(_family, _defaultQualifier);
+      }
+    });
+  }
+
+  boolean setCell(final byte[] row, final byte[] value) {
+    _metrics.serialized(row.length + value.length);
+    return execute(new Command<Boolean>(Operation.SET) {
+      @Override
+      Boolean execute(HTableInterface table) throws IOException {
+        return setCas(table, row, new Get(row).addColumn(_family, _defaultQualifier),
+            new Put(row).add(_family, _defaultQualifier, value));
+      }
+    });
+  }
+
+  /**
+   * Deletes the row and returns its encoded value, null if there was none.
+   */
+  byte[] removeCell(final byte[] row) {
+    return execute(new Command<byte[]>(Operation.REMOVE) {
+      @Override
+      byte[] execute(HTableInterface table) throws IOException {
+        if (_useEndpoint) {
+          return removeEndpoint(table, row);
+        }
+        Result result = removeCas(table, row, new Get(row).addColumn(_family, _defaultQualifier),
+            new Delete(row).deleteColumns(_family, _defaultQualifier));
+        return result == null ? null : result.getValue(_family, _defaultQualifier);
+      }
+    });
+  }
+
+  boolean deleteCell(final byte[] row) {
+    return execute(new Command<Boolean>(Operation.DELETE) {
+      @Override
+      Boolean execute(HTableInterface table) throws IOException {
+        return deleteCas(table, row, new Get(row).addColumn(_family, _defaultQualifier),
+            new Delete(row).deleteColumns(_family, _defaultQualifier));
+      }
+    });
+  }
+
+  @Override
+  public V putIfAbsent(final K key, final V value) {
+    flush();
+    return execute(key, new Command<V>(Operation.PUT_IF_ABSENT) {
+      @Override
+      V execute(HTableInterface table) throws IOException {
+        if (_useEndpoint) {
+          byte[] row = getRow(key);
+          byte[] existing = endpoint(table, row, Operation.PUT_IF_ABSENT).putIfAbsent(row, _family,
+              _defaultQualifier, toBytes(row, value), getStripeRow(), _sizeQualifier);
+          if (existing == null) {
+            updateCachedSize(1l);
+          }
+          return toValue(existing);
+        }
+        Get get = getGet(key);
+        Put put = getPut(key, value);
+        byte[] val = null;
+        _metrics.rpc(Operation.PUT_IF_ABSENT);
+        boolean checkAndPut = table.checkAndPut(get.getRow(), _family, _defaultQualifier, val, put);
+        if (checkAndPut) {
+          updateSize(1l);
+          return null;
+        } else {
+          _metrics.rpc(Operation.PUT_IF_ABSENT);
+          return getValue(table.get(get));
+        }
+      }
+    });
+  }
+
+  @Override
+  public boolean remove(final Object key, final Object value) {
+    if (value == null) {
+      // encodes to the empty value, which checkAndDelete takes as absent
+      return false;
+    }
+    flush();
+    return execute(key, new Command<Boolean>(Operation.REMOVE) {
+      @SuppressWarnings("unchecked")
+      @Override
+      Boolean execute(HTableInterface table) throws IOException {
+        byte[] val = encodeValue((V) value);
+        Delete delete = getDelete((K) key);
+        _metrics.rpc(Operation.REMOVE);
+        boolean checkAndDelete = table.checkAndDelete(delete.getRow(), _family, _defaultQualifier, val, delete);
+        if (checkAndDelete) {
+          updateSize(-1l);
+          writeTombstone(table, delete.getRow(), Operation.REMOVE);
+        }
+        return checkAndDelete;
+      }
+    });
+  }
+
+  @Override
+  public boolean replace(final K key, final V oldValue, final V newValue) {
+    flush();
+    return execute(key, new Command<Boolean>(Operation.REPLACE) {
+      @Override
+      Boolean execute(HTableInterface table) throws IOException {
+        Put put = getPut(key, newValue);
+        byte[] val = encodeValue(oldValue);
+        _metrics.rpc(Operation.REPLACE);
+        return table.checkAndPut(put.getRow(), _family, _defaultQualifier, val, put);
+      }
+    });
+  }
+
+  @Override
+  public V replace(final K key, final V value) {
+    flush();
+    return execute(key, new Command<V>(Operation.REPLACE) {
+      @Override
+      V execute(HTableInterface table) throws IOException {
+        if (_useEndpoint) {
+          byte[] row = getRow(key);
+          return toValue(endpoint(table, row, Operation.REPLACE).replace(row, _family, _defaultQualifier,
+              toBytes(row, value)));
+        }
+        Get get = getGet(key);
+        Put put = getPut(key, value);
+        int attempts = 0;
+        long start = System.nanoTime();
+        while (true) {
+          _metrics.rpc(Operation.REPLACE);
+          Result result = table.get(get);
+          byte[] val;
+          if (result.getRow() == null) {
+            return null;
+          } else {
+            val = result.getValue(_family, _defaultQualifier);
+          }
+          _metrics.rpc(Operation.REPLACE);
+          boolean checkAndPut = table.checkAndPut(get.getRow(), _family, _defaultQualifier, val, put);
+          if (checkAndPut) {
+            return getValue(result);
+          }
+          casFailed(Operation.REPLACE, key, ++attempts, start);
+        }
+      }
+    });
+  }
+
+  /**
+   * Deletes every entry and resets the size counter to zero. Each split of
+   * {@link #getSplits()} is scanned for its row keys only and deleted in
+   * batches of {@link #getBatchSize()} rows, up to
+   * {@link #getScanParallelism()} splits at a time. Entries written by other
+   * clients while the map is cleared may survive it and are then not
+   * counted by the size counter.
+   */
+  @Override
+  public void clear() {
+    deleteRange();
+    writeSize(0);
+  }
+
+  /**
+   * Deletes the entries of all splits without touching the size counter and
+   * returns the number of entries deleted.
+   */
+  protected long deleteRange() {
+    flush();
+    try {
+      List<Long> deleted = runSplits(new SplitTask<Long>() {
+        @Override
+        Long run(final Pair<byte[], byte[]> split) {
+          return execute(new Command<Long>(Operation.CLEAR) {
+            @Override
+            Long execute(HTableInterface table) throws IOException {
+              return deleteSplit(table, split);
+            }
+          });
+        }
+      }, _tableFactory.getExecutor());
+      long total = 0;
+      for (Long count : deleted) {
+        total += count;
+      }
+      return total;
+    } finally {
+      NearCache<K, V> nearCache = _nearCache;
+      if (nearCache != null) {
+        nearCache.invalidateAll();
+      }
+    }
+  }
+
+  private long deleteSplit(HTableInterface table, Pair<byte[], byte[]> split) throws IOException {
+    Scan scan = new Scan(split.getFirst(), split.getSecond());
+    scan.addColumn(_family, _defaultQualifier);
+    scan.setFilter(new KeyOnlyFilter());
+    scan.setCaching(_batchSize);
+    scan.setCacheBlocks(false);
+    _metrics.rpc(Operation.CLEAR);
+    ResultScanner scanner = table.getScanner(scan);
+    long deleted = 0;
+    try {
+      List<Delete> deletes = new ArrayList<Delete>(_batchSize);
+      for (Result result : scanner) {
+        deletes.add(new Delete(result.getRow()).deleteColumns(_family, _defaultQualifier));
+        if (deletes.size() >= _batchSize) {
+          deleted += deleteBatch(table, deletes);
+        }
+      }
+      if (!deletes.isEmpty()) {
+        deleted += deleteBatch(table, deletes);
+      }
+    } finally {
+      scanner.close();
+    }
+    return deleted;
+  }
+
+  private int deleteBatch(HTableInterface table, List<Delete> deletes) throws IOException {
+    int count = deletes.size();
+    List<Put> tombstones = getTombstones(deletes);
+    _metrics.rpc(Operation.CLEAR);
+    table.delete(deletes);
+    writeTombstones(table, tombstones, Operation.CLEAR);
+    deletes.clear();
+    return count;
+  }
+
+  /**
+   * Fetches all the given keys with multi-gets of at most {@link #getBatchSize()}
+   * rows each. Keys that are not present are left out of the returned map.
+   */
+  public Map<K, V> getAll(final Collection<? extends K> keys) {
+    final Map<K, V> values = new LinkedHashMap<K, V>();
+    if (keys.isEmpty()) {
+      return values;
+    }
+    flush();
+    return execute(new Command<Map<K, V>>(Operation.GET_ALL) {
+      @Override
+      Map<K, V> execute(HTableInterface table) throws IOException {
+        List<K> batchKeys = new ArrayList<K>(_batchSize);
+        List<Get> gets = new ArrayList<Get>(_batchSize);
+        for (K key : new LinkedHashSet<K>(keys)) {
+          batchKeys.add(key);
+          gets.add(getGet(key));
+          if (gets.size() >= _batchSize) {
+            getBatch(table, batchKeys, gets, values);
+          }
+        }
+        if (!gets.isEmpty()) {
+          getBatch(table, batchKeys, gets, values);
+        }
+        return values;
+      }
+    });
+  }
+
+  /**
+   * Writes all the entries with batched puts of at most {@link #getBatchSize()}
+   * rows each, sending a single size update per batch. Unlike {@link #put(Object, Object)}
+   * this is not a compare-and-set per key, so concurrent writers of the same
+   * keys may cause the size counter to drift.
+   */
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+    if (m.isEmpty()) {
+      return;
+    }
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+        writeBuffer.put(e.getKey(), e.getValue());
+        invalidate(e.getKey());
+      }
+      return;
+    }
+    try {
+      putAllBatched(m);
+    } finally {
+      invalidateAll(m.keySet());
+    }
+  }
+
+  private void putAllBatched(final Map<? extends K, ? extends V> m) {
+    execute(new Command<Void>(Operation.PUT_ALL) {
+      @Override
+      Void execute(HTableInterface table) throws IOException {
+        List<Get> gets = new ArrayList<Get>(_batchSize);
+        List<Put> puts = new ArrayList<Put>(_batchSize);
+        for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+          gets.add(getGet(e.getKey()));
+          puts.add(getPut(e.getKey(), e.getValue()));
+          if (puts.size() >= _batchSize) {
+            putBatch(table, gets, puts);
+          }
+        }
+        if (!puts.isEmpty()) {
+          putBatch(table, gets, puts);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Removes all the given keys with batched deletes of at most
+   * {@link #getBatchSize()} rows each, sending a single size update per batch.
+   * Returns the previous values of the keys that were present. Like
+   * {@link #putAll(Map)} this is not a compare-and-set per key.
+   */
+  public Map<K, V> removeAll(final Collection<? extends K> keys) {
+    final Map<K, V> removed = new LinkedHashMap<K, V>();
+    if (keys.isEmpty()) {
+      return removed;
+    }
+    flush();
+    try {
+      return removeAllBatched(keys, removed);
+    } finally {
+      invalidateAll(keys);
+    }
+  }
+
+  private Map<K, V> removeAllBatched(final Collection<? extends K> keys, final Map<K, V> removed) {
+    return execute(new Command<Map<K, V>>(Operation.REMOVE_ALL) {
+      @Override
+      Map<K, V> execute(HTableInterface table) throws IOException {
+        List<K> batchKeys = new ArrayList<K>(_batchSize);
+        List<Get> gets = new ArrayList<Get>(_batchSize);
+        for (K key : new LinkedHashSet<K>(keys)) {
+          batchKeys.add(key);
+          gets.add(getGet(key));
+          if (gets.size() >= _batchSize) {
+            removeBatch(table, batchKeys, gets, removed);
+          }
+        }
+        if (!gets.isEmpty()) {
+          removeBatch(table, batchKeys, gets, removed);
+        }
+        return removed;
+      }
+    });
+  }
+
+  /**
+   * Switches the map into write-behind mode. Puts and removes are buffered on
+   * the client, coalesced per key and written in batches once
+   * maxBufferedEntries keys are pending, every flushInterval (when greater
+   * than zero) or on {@link #flush()}. While enabled put and remove return null
+   * instead of the previous value. Reads on this map see buffered writes,
+   * other clients do not until they are flushed.
+   * <p>
+   * A flush reads which keys exist and then writes the batch, the two are not
+   * atomic. When another client writes the same keys in between, the size
+   * counter drifts, {@link #repairSize()} sets it back to the exact count.
+   */
+  public synchronized void enableWriteBehind(int maxBufferedEntries, long flushInterval, TimeUnit unit) {
+    if (maxBufferedEntries < 1) {
+      throw new IllegalArgumentException("Max buffered entries [" + maxBufferedEntries + "] must be at least 1.");
+    }
+    disableWriteBehind();
+    _writeBuffer = new WriteBehindBuffer<K, V>(this, maxBufferedEntries, flushInterval, unit);
+  }
+
+  /**
+   * Flushes any buffered writes and switches back to synchronous writes.
+   */
+  public synchronized void disableWriteBehind() {
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      writeBuffer.close();
+      _writeBuffer = null;
+    }
+  }
+
+  public boolean isWriteBehind() {
+    return _writeBuffer != null;
+  }
+
+  /**
+   * Writes all buffered puts and removes, a no-op unless write-behind is
+   * enabled.
+   */
+  public void flush() {
+    WriteBehindBuffer<K, V> writeBuffer = _writeBuffer;
+    if (writeBuffer != null) {
+      writeBuffer.flush();
+    }
+  }
+
+  @Override
+  public void close() {
+    disableWriteBehind();
+    unregisterMBean();
+  }
+
+  public MapMetrics getMetrics() {
+    return _metrics;
+  }
+
+  /**
+   * Publishes the metrics of this map over JMX, named after its table and map
+   * name. A map registered earlier under the same names is replaced. The
+   * MBean is unregistered on {@link #close()}.
+   */
+  public synchronized ObjectName registerMBean() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      String table = ObjectName.quote(Bytes.toStringBinary(_table));
+      String mapName = ObjectName.quote(Bytes.toStringBinary(_mapName));
+      ObjectName name = new ObjectName("org.apache.hbase.collections:type=HBaseMap,table=" + table + ",name="
+          + mapName);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(_metrics, name);
+      _objectName = name;
+      return name;
+    } catch (JMException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public synchronized void unregisterMBean() {
+    if (_objectName == null) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(_objectName)) {
+        server.unregisterMBean(_objectName);
+      }
+    } catch (JMException e) {
+      throw new RuntimeException(e);
+    } finally {
+      _objectName = null;
+    }
+  }
+
+  /**
+   * Enables a client side read-through cache for {@link #get(Object)} holding
+   * at most maxEntries values and maxBytes of serialized rows. Cached values
+   * expire after ttl, writes through this map invalidate them right away,
+   * writes from other clients are only seen once the entry expires.
+   */
+  public synchronized void enableNearCache(int maxEntries, long maxBytes, long ttl, TimeUnit unit) {
+    if (maxEntries < 1 || maxBytes < 1 || ttl < 1) {
+      throw new IllegalArgumentException("Max entries [" + maxEntries + "], max bytes [" + maxBytes + "] and ttl ["
+          + ttl + "] must be at least 1.");
+    }
+    _nearCache = new NearCache<K, V>(maxEntries, maxBytes, ttl, unit);
+  }
+
+  public synchronized void disableNearCache() {
+    _nearCache = null;
+  }
+
+  public boolean isNearCache() {
+    return _nearCache != null;
+  }
+
+  public long getNearCacheHitCount() {
+    NearCache<K, V> nearCache = _nearCache;
+    return nearCache == null ? 0 : nearCache.getHitCount();
+  }
+
+  public long getNearCacheMissCount() {
+    NearCache<K, V> nearCache = _nearCache;
+    return nearCache == null ? 0 : nearCache.getMissCount();
+  }
+
+  public int getSizeStripes() {
+    return _sizeStripes;
+  }
+
+  /**
+   * Spreads the size counter over the given number of rows, each writer thread
+   * increments one of them. The count is stored next to the size, so every
+   * client reads and resets all stripes whatever it set itself. It can be
+   * raised but never lowered, a lower count than the stored one is ignored.
+   */
+  public void setSizeStripes(final int sizeStripes) {
+    if (sizeStripes < 1 || sizeStripes > MAX_SIZE_STRIPES) {
+      throw new IllegalArgumentException("Size stripes [" + sizeStripes + "] must be between 1 and "
+          + MAX_SIZE_STRIPES + ".");
+    }
+    int stored = execute(new Command<Integer>(Operation.UPDATE_SIZE) {
+      @Override
+      Integer execute(HTableInterface table) throws IOException {
+        byte[] row = _serializerFactory.getSizeRow(_mapName, 0);
+        while (true) {
+          Get get = new Get(row).addColumn(_family, _sizeStripesQualifier);
+          _metrics.rpc(Operation.UPDATE_SIZE);
+          byte[] current = table.get(get).getValue(_family, _sizeStripesQualifier);
+          if (current != null && Bytes.toInt(current) >= sizeStripes) {
+            return Bytes.toInt(current);
+          }
+          Put put = new Put(row).add(_family, _sizeStripesQualifier, Bytes.toBytes(sizeStripes));
+          _metrics.rpc(Operation.UPDATE_SIZE);
+          if (table.checkAndPut(row, _family, _sizeStripesQualifier, current, put)) {
+            return sizeStripes;
+          }
+        }
+      }
+    });
+    raiseSizeStripes(stored);
+  }
+
+  /**
+   * Lets {@link #size()} and {@link #sizeActual()} answer from a locally
+   * cached value for up to the given interval, zero always reads the counter.
+   */
+  public void setSizeCacheInterval(long interval, TimeUnit unit) {
+    synchronized (_sizeCacheLock) {
+      _sizeCacheNanos = unit.toNanos(interval);
+      _cachedSizeValid = false;
+    }
+  }
+
+  public int getScannerCaching() {
+    return _scannerCaching;
+  }
+
+  /**
+   * Number of rows fetched per scanner round trip.
+   */
+  public void setScannerCaching(int scannerCaching) {
+    if (scannerCaching < 1) {
+      throw new IllegalArgumentException("Scanner caching [" + scannerCaching + "] must be at least 1.");
+    }
+    _scannerCaching = scannerCaching;
+  }
+
+  public int getScannerBatch() {
+    return _scannerBatch;
+  }
+
+  /**
+   * Maximum number of cells per scanner result, -1 for no limit.
+   */
+  public void setScannerBatch(int scannerBatch) {
+    _scannerBatch = scannerBatch;
+  }
+
+  public boolean isScannerPrefetch() {
+    return _scannerPrefetch;
+  }
+
+  /**
+   * Whether iterators fetch the next batch of rows in the background while
+   * the current one is consumed.
+   */
+  public void setScannerPrefetch(boolean scannerPrefetch) {
+    _scannerPrefetch = scannerPrefetch;
+  }
+
+  public boolean isCompactEncoding() {
+    return _serializerFactory.isCompactEncoding();
+  }
+
+  /**
+   * See {@link SerializerFactory#setCompactEncoding(boolean)}.
+   */
+  public void setCompactEncoding(boolean compactEncoding) {
+    _serializerFactory.setCompactEncoding(compactEncoding);
+  }
+
+  public int getCompressionThreshold() {
+    return _serializerFactory.getCompressionThreshold();
+  }
+
+  /**
+   * See {@link SerializerFactory#setCompressionThreshold(int)}.
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    _serializerFactory.setCompressionThreshold(compressionThreshold);
+  }
+
+  public CasRetryPolicy getCasRetryPolicy() {
+    return _casRetryPolicy;
+  }
+
+  /**
+   * How put, set, remove, delete and replace retry compare-and-sets lost to
+   * concurrent writers, by default right away and without limit.
+   */
+  public void setCasRetryPolicy(CasRetryPolicy casRetryPolicy) {
+    _casRetryPolicy = casRetryPolicy;
+  }
+
+  public boolean isUseEndpoint() {
+    return _useEndpoint;
+  }
+
+  /**
+   * Routes put, remove, putIfAbsent and replace(key, value) through
+   * {@link MapEndpoint}, which must be loaded on the table. Each becomes a
+   * single round trip that reads and writes the row under its lock, so there
+   * is no compare-and-set to retry and the retry policy does not apply.
+   */
+  public void setUseEndpoint(boolean useEndpoint) {
+    _useEndpoint = useEndpoint;
+  }
+
+  public byte[] getTombstoneQualifier() {
+    return _tombstoneQualifier;
+  }
+
+  /**
+   * Writes an empty cell under the given qualifier after every delete, so
+   * {@link #entriesModifiedSince(long)} can report deletions, null turns
+   * tombstones off. The tombstone is a separate write after the delete and
+   * is lost if the client fails in between. Tombstones stay until
+   * {@link #purgeTombstones(long)} removes them.
+   */
+  public void setTombstoneQualifier(byte[] tombstoneQualifier) {
+    if (tombstoneQualifier != null && Bytes.equals(tombstoneQualifier, _defaultQualifier)) {
+      throw new IllegalArgumentException("Tombstone qualifier [" + Bytes.toStringBinary(tombstoneQualifier)
+          + "] must differ from the value qualifier.");
+    }
+    _tombstoneQualifier = tombstoneQualifier;
+  }
+
+  public int getBatchSize() {
+    return _batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size [" + batchSize + "] must be at least 1.");
+    }
+    _batchSize = batchSize;
+  }
+
+  private void getBatch(HTableInterface table, List<K> keys, List<Get> gets, Map<K, V> values) throws IOException {
+    _metrics.rpc(Operation.GET_ALL);
+    Result[] results = table.get(gets);
+    for (int i = 0; i < results.length; i++) {
+      if (results[i].getRow() != null) {
+        values.put(keys.get(i), getValue(results[i]));
+      }
+    }
+    keys.clear();
+    gets.clear();
+  }
+
+  private void putBatch(HTableInterface table, List<Get> gets, List<Put> puts) throws IOException {
+    _metrics.rpc(Operation.PUT_ALL);
+    Result[] results = table.get(gets);
+    long sizeChange = 0;
+    for (Result result : results) {
+      if (result.getRow() == null) {
+        sizeChange++;
+      }
+    }
+    _metrics.rpc(Operation.PUT_ALL);
+    table.put(puts);
+    if (sizeChange != 0) {
+      updateSize(sizeChange);
+    }
+    gets.clear();
+    puts.clear();
+  }
+
+  private void removeBatch(HTableInterface table, List<K> keys, List<Get> gets, Map<K, V> removed)
+      throws IOException {
+    _metrics.rpc(Operation.REMOVE_ALL);
+    Result[] results = table.get(gets);
+    List<Delete> deletes = new ArrayList<Delete>(results.length);
+    for (int i = 0; i < results.length; i++) {
+      if (results[i].getRow() != null) {
+        K key = keys.get(i);
+        removed.put(key, getValue(results[i]));
+        deletes.add(getDelete(key));
+      }
+    }
+    if (!deletes.isEmpty()) {
+      long sizeChange = -deletes.size();
+      List<Put> tombstones = getTombstones(deletes);
+      _metrics.rpc(Operation.REMOVE_ALL);
+      table.delete(deletes);
+      updateSize(sizeChange);
+      writeTombstones(table, tombstones, Operation.REMOVE_ALL);
+    }
+    keys.clear();
+    gets.clear();
+  }
+
+  void writeBuffered(final Map<K, Object> writes) {
+    execute(new Command<Void>(Operation.FLUSH) {
+      @SuppressWarnings("unchecked")
+      @Override
+      Void execute(HTableInterface table) throws IOException {
+        List<Get> gets = new ArrayList<Get>(_batchSize);
+        List<Row> mutations = new ArrayList<Row>(_batchSize);
+        for (Entry<K, Object> e : writes.entrySet()) {
+          K key = e.getKey();
+          gets.add(getGet(key));
+          if (e.getValue() == WriteBehindBuffer.REMOVED) {
+            mutations.add(getDelete(key));
+          } else {
+            mutations.add(getPut(key, (V) e.getValue()));
+          }
+          if (mutations.size() >= _batchSize) {
+            mutateBatch(table, gets, mutations);
+          }
+        }
+        if (!mutations.isEmpty()) {
+          mutateBatch(table, gets, mutations);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Writes one batch and applies its size change right away, so a later
+   * batch failing does not lose the change of the rows already written.
+   */
+  private void mutateBatch(HTableInterface table, List<Get> gets, List<Row> mutations) throws IOException {
+    _metrics.rpc(Operation.FLUSH);
+    Result[] results = table.get(gets);
+    List<Row> batch = new ArrayList<Row>(mutations.size());
+    long sizeChange = 0;
+    for (int i = 0; i < results.length; i++) {
+      boolean exists = results[i].getRow() != null;
+      Row mutation = mutations.get(i);
+      if (mutation instanceof Put) {
+        if (!exists) {
+          sizeChange++;
+        }
+        batch.add(mutation);
+      } else if (exists) {
+        sizeChange--;
+        batch.add(mutation);
+        Put tombstone = getTombstone(mutation.getRow());
+        if (tombstone != null) {
+          batch.add(tombstone);
+        }
+      }
+    }
+    try {
+      _metrics.rpc(Operation.FLUSH);
+      table.batch(batch);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    if (sizeChange != 0) {
+      updateSize(sizeChange);
+    }
+    gets.clear();
+    mutations.clear();
+  }
+
+  private Put getTombstone(byte[] row) {
+    byte[] qualifier = _tombstoneQualifier;
+    return qualifier == null ? null : new Put(row).add(_family, qualifier, HConstants.EMPTY_BYTE_ARRAY);
+  }
+
+  /**
+   * The tombstones for the deleted rows, taken before the deletes are sent as
+   * the client may empty the list.
+   */
+  private List<Put> getTombstones(List<Delete> deletes) {
+    if (_tombstoneQualifier == null) {
+      return Collections.emptyList();
+    }
+    List<Put> tombstones = new ArrayList<Put>(deletes.size());
+    for (Delete delete : deletes) {
+      tombstones.add(getTombstone(delete.getRow()));
+    }
+    return tombstones;
+  }
+
+  private void writeTombstone(HTableInterface table, byte[] row, Operation operation) throws IOException {
+    Put tombstone = getTombstone(row);
+    if (tombstone != null) {
+      _metrics.rpc(operation);
+      table.put(tombstone);
+    }
+  }
+
+  private void writeTombstones(HTableInterface table, List<Put> tombstones, Operation operation)
+      throws IOException {
+    if (!tombstones.isEmpty()) {
+      _metrics.rpc(operation);
+      table.put(tombstones);
+    }
+  }
+
+  /**
+   * Called after a compare-and-set lost against a concurrent writer, backs
+   * off as the retry policy asks or throws once it gives up.
+   */
+  private void casFailed(Operation operation, Object key, int attempts, long start) {
+    CasRetryPolicy policy = _casRetryPolicy;
+    long backoffNanos = policy.backoffNanos(attempts);
+    long elapsedNanos = System.nanoTime() - start;
+    if (!policy.canRetry(attempts, elapsedNanos, backoffNanos)) {
+      _metrics.casFailure(operation);
+      Object k = key instanceof byte[] ? Bytes.toStringBinary((byte[]) key) : key;
+      throw new CasContentionException(operation.name(), k, attempts, elapsedNanos);
+    }
+    _metrics.casRetry(operation);
+    if (backoffNanos > 0) {
+      _metrics.casBackoff(backoffNanos);
+      try {
+        TimeUnit.NANOSECONDS.sleep(backoffNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  protected void updateSize(final long sizeChange) {
+    execute(new Command<Void>(Operation.UPDATE_SIZE) {
+      @Override
+      Void execute(HTableInterface table) throws IOException {
+        byte[] row = getStripeRow();
+        _metrics.rpc(Operation.UPDATE_SIZE);
+        table.incrementColumnValue(row, _family, _sizeQualifier, sizeChange);
+        return null;
+      }
+    });
+    updateCachedSize(sizeChange);
+  }
+
+  /**
+   * The size counter row the calling thread increments.
+   */
+  private byte[] getStripeRow() {
+    int stripe = (int) (Thread.currentThread().getId() % _sizeStripes);
+    return _serializerFactory.getSizeRow(_mapName, stripe);
+  }
+
+  private void updateCachedSize(long sizeChange) {
+    if (_sizeCacheNanos > 0) {
+      synchronized (_sizeCacheLock) {
+        _cachedSize += sizeChange;
+      }
+    }
+  }
+
+  protected HTableFactory getTableFactory() {
+    return _tableFactory;
+  }
+
+  protected SerializerFactory<K, V> getSerializerFactory() {
+    return _serializerFactory;
+  }
+
+  protected byte[] getTableName() {
+    return _table;
+  }
+
+  protected byte[] getFamily() {
+    return _family;
+  }
+
+  protected byte[] getDefaultQualifier() {
+    return _defaultQualifier;
+  }
+
+  protected byte[] getMapName() {
+    return _mapName;
+  }
+
+  protected byte[] getRow(K key) {
+    return _serializerFactory.getRow(key, _mapName);
+  }
+
+  protected K getKey(Result result) {
+    return _serializerFactory.getKey(result, _mapName, _family, _defaultQualifier);
+  }
+
+  K getKey(byte[] row, int offset, int length) {
+    return _serializerFactory.getKey(row, offset, length, _mapName);
+  }
+
+  protected V getValue(Result result) {
+    if (result.isEmpty()) {
+      return null;
+    }
+    int bytes = 0;
+    for (KeyValue kv : result.raw()) {
+      bytes += kv.getLength();
+    }
+    _metrics.deserialized(bytes);
+    KeyValue kv = result.getColumnLatest(_family, _defaultQualifier);
+    if (kv == null) {
+      return null;
+    }
+    return decodeValue(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+  }
+
+  /**
+   * Encodes a value for its cell. Maps with their own cell layout override
+   * this together with {@link #decodeValue(byte[], int, int)}.
+   */
+  protected byte[] encodeValue(V value) {
+    return _serializerFactory.toBytes(value);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected V decodeValue(byte[] buf, int offset, int length) {
+    return (V) _serializerFactory.toObject(buf, offset, length);
+  }
+
+  private MapProtocol endpoint(HTableInterface table, byte[] row, Operation operation) {
+    _metrics.rpc(operation);
+    return table.coprocessorProxy(MapProtocol.class, row);
+  }
+
+  private byte[] toBytes(byte[] row, V value) {
+    byte[] val = encodeValue(value);
+    _metrics.serialized(row.length + val.length);
+    return val;
+  }
+
+  private V toValue(byte[] val) {
+    if (val == null) {
+      return null;
+    }
+    _metrics.deserialized(val.length);
+    return decodeValue(val, 0, val.length);
+  }
+
+  protected Get getGet(K key) {
+    Get get = _serializerFactory.getGet(key, _mapName, _family, _defaultQualifier);
+    _metrics.serialized(get.getRow().length);
+    return get;
+  }
+
+  protected Put getPut(K key, V value) {
+    byte[] row = getRow(key);
+    return new Put(row).add(_family, _defaultQualifier, toBytes(row, value));
+  }
+
+  protected Delete getDelete(K key) {
+    Delete delete = _serializerFactory.getDelete(key, _mapName, _family, _defaultQualifier);
+    _metrics.serialized(delete.getRow().length);
+    return delete;
+  }
+
+  private void invalidate(Object key) {
+    NearCache<K, V> nearCache = _nearCache;
+    if (nearCache != null) {
+      nearCache.invalidate(key);
+    }
+  }
+
+  void invalidateAll(Collection<?> keys) {
+    NearCache<K, V> nearCache = _nearCache;
+    if (nearCache != null) {
+      for (Object key : keys) {
+        nearCache.invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * Executes a command that writes the given key, invalidating any cached
+   * value once the write is done whether or not it succeeded.
+   */
+  <T> T execute(Object key, Command<T> command) {
+    try {
+      return execute(command);
+    } finally {
+      invalidate(key);
+    }
   }
 
-  private <T> T execute(Command<T> command) {
+  <T> T execute(Command<T> command) {
+    long start = System.nanoTime();
     HTableInterface table = null;
     try {
       table = _tableFactory.getInstance(_table);
+      _metrics.tableCheckout(System.nanoTime() - start);
       return command.execute(table);
     } catch (IOException e) {
       throw new RuntimeException(e);
     } finally {
       IOUtils.closeQuietly(table);
+      _metrics.record(command._operation, System.nanoTime() - start);
     }
   }
 
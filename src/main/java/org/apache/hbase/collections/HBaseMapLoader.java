@@ -0,0 +1,297 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Populates an {@link HBaseMap} by writing HFiles and handing them to the
+ * region servers, bypassing the memstore and the write-ahead log. Entries may
+ * be added in any order, they are encoded as the map would, sorted in memory
+ * and spilled as sorted runs to the local file system once
+ * {@link #getMaxBufferedEntries()} are buffered. {@link #load()} merges the
+ * runs into one HFile per region, later additions of a key winning, and bulk
+ * loads them, each region atomically.
+ * <p>
+ * Meant for the initial population of a map, the size counter is set to the
+ * number of distinct keys loaded. Keys already in the map are overwritten but
+ * not counted.
+ */
+public class HBaseMapLoader<K, V> implements Closeable {
+
+  private static final int DEFAULT_MAX_BUFFERED_ENTRIES = 100000;
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private final HBaseMap<K, V> _map;
+  private final Configuration _configuration;
+  private final FileSystem _fs;
+  private final Path _dir;
+  private final CacheConfig _cacheConfig;
+  private final long _timestamp = System.currentTimeMillis();
+  private final List<List<Path>> _runs = new ArrayList<List<Path>>();
+  private TreeMap<byte[], byte[]> _buffer = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+  private int _maxBufferedEntries = DEFAULT_MAX_BUFFERED_ENTRIES;
+  private byte[][] _startKeys;
+  private boolean _loaded;
+
+  /**
+   * Spills and writes the HFiles under hadoop.tmp.dir on the local file
+   * system.
+   */
+  public HBaseMapLoader(HBaseMap<K, V> map, Configuration configuration) throws IOException {
+    this(map, configuration, new Path(configuration.get("hadoop.tmp.dir"), "hbase-map-loader-" + UUID.randomUUID()));
+  }
+
+  public HBaseMapLoader(HBaseMap<K, V> map, Configuration configuration, Path localDir) throws IOException {
+    _map = map;
+    _configuration = configuration;
+    _fs = FileSystem.getLocal(configuration);
+    _dir = _fs.makeQualified(localDir);
+    _cacheConfig = new CacheConfig(configuration);
+  }
+
+  public int getMaxBufferedEntries() {
+    return _maxBufferedEntries;
+  }
+
+  public void setMaxBufferedEntries(int maxBufferedEntries) {
+    if (maxBufferedEntries < 1) {
+      throw new IllegalArgumentException("Max buffered entries [" + maxBufferedEntries + "] must be at least 1.");
+    }
+    _maxBufferedEntries = maxBufferedEntries;
+  }
+
+  public void add(K key, V value) throws IOException {
+    if (_loaded) {
+      throw new IllegalStateException("Already loaded.");
+    }
+    _buffer.put(_map.getRow(key), _map.encodeValue(value));
+    if (_buffer.size() >= _maxBufferedEntries) {
+      spill();
+    }
+  }
+
+  public void addAll(Map<? extends K, ? extends V> entries) throws IOException {
+    for (Entry<? extends K, ? extends V> e : entries.entrySet()) {
+      add(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * Writes the HFiles, bulk loads them and sets the size counter. Returns the
+   * number of distinct keys loaded.
+   */
+  public long load() throws IOException {
+    if (_loaded) {
+      throw new IllegalStateException("Already loaded.");
+    }
+    _loaded = true;
+    spill();
+    Path familyDir = new Path(new Path(_dir, "load"), Bytes.toString(_map.getFamily()));
+    long count = 0;
+    for (int region = 0; region < getStartKeys().length; region++) {
+      List<Path> files = new ArrayList<Path>(_runs.size());
+      for (List<Path> run : _runs) {
+        if (run.get(region) != null) {
+          files.add(run.get(region));
+        }
+      }
+      if (!files.isEmpty()) {
+        count += merge(files, new Path(familyDir, "region-" + region));
+      }
+    }
+    if (count > 0) {
+      HTable table = new HTable(_configuration, _map.getTableName());
+      try {
+        new LoadIncrementalHFiles(_configuration).doBulkLoad(familyDir.getParent(), table);
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      } finally {
+        table.close();
+      }
+    }
+    _map.writeSize(count);
+    return count;
+  }
+
+  /**
+   * Deletes the local files.
+   */
+  @Override
+  public void close() throws IOException {
+    _buffer = null;
+    _fs.delete(_dir, true);
+  }
+
+  /**
+   * Writes the buffer as a sorted run of one HFile per region, null for the
+   * regions it has no rows for.
+   */
+  private void spill() throws IOException {
+    if (_buffer.isEmpty()) {
+      return;
+    }
+    byte[][] startKeys = getStartKeys();
+    Path runDir = new Path(_dir, "run-" + _runs.size());
+    List<Path> run = new ArrayList<Path>(startKeys.length);
+    StoreFile.Writer writer = null;
+    int region = -1;
+    try {
+      for (Entry<byte[], byte[]> e : _buffer.entrySet()) {
+        byte[] row = e.getKey();
+        if (writer == null || region + 1 < startKeys.length && Bytes.compareTo(row, startKeys[region + 1]) >= 0) {
+          if (writer != null) {
+            close(writer);
+          }
+          int next = regionOf(row, startKeys);
+          while (run.size() < next) {
+            run.add(null);
+          }
+          region = next;
+          writer = newWriter(new Path(runDir, "region-" + region));
+          run.add(writer.getPath());
+        }
+        writer.append(newKeyValue(row, e.getValue()));
+      }
+    } finally {
+      if (writer != null) {
+        close(writer);
+      }
+    }
+    while (run.size() < startKeys.length) {
+      run.add(null);
+    }
+    _runs.add(run);
+    _buffer = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+  }
+
+  private static class Head {
+    final HFileScanner _scanner;
+    final int _run;
+
+    Head(HFileScanner scanner, int run) {
+      _scanner = scanner;
+      _run = run;
+    }
+  }
+
+  /**
+   * Merges the sorted runs of one region into a single HFile, keeping the
+   * value of the latest run for rows in several, and returns its row count.
+   */
+  private long merge(List<Path> files, Path path) throws IOException {
+    List<HFile.Reader> readers = new ArrayList<HFile.Reader>(files.size());
+    PriorityQueue<Head> heads = new PriorityQueue<Head>(files.size(), new Comparator<Head>() {
+      @Override
+      public int compare(Head h1, Head h2) {
+        KeyValue kv1 = h1._scanner.getKeyValue();
+        KeyValue kv2 = h2._scanner.getKeyValue();
+        int cmp = Bytes.compareTo(kv1.getBuffer(), kv1.getRowOffset(), kv1.getRowLength(), kv2.getBuffer(),
+            kv2.getRowOffset(), kv2.getRowLength());
+        return cmp != 0 ? cmp : h2._run - h1._run;
+      }
+    });
+    StoreFile.Writer writer = newWriter(path);
+    long count = 0;
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        HFile.Reader reader = HFile.createReader(_fs, files.get(i), _cacheConfig);
+        readers.add(reader);
+        reader.loadFileInfo();
+        HFileScanner scanner = reader.getScanner(false, false);
+        if (scanner.seekTo()) {
+          heads.add(new Head(scanner, i));
+        }
+      }
+      byte[] lastRow = null;
+      while (!heads.isEmpty()) {
+        Head head = heads.poll();
+        KeyValue kv = head._scanner.getKeyValue();
+        byte[] row = kv.getRow();
+        if (lastRow == null || !Bytes.equals(row, lastRow)) {
+          writer.append(kv);
+          lastRow = row;
+          count++;
+        }
+        if (head._scanner.next()) {
+          heads.add(head);
+        }
+      }
+    } finally {
+      close(writer);
+      for (HFile.Reader reader : readers) {
+        reader.close(false);
+      }
+    }
+    return count;
+  }
+
+  private byte[][] getStartKeys() throws IOException {
+    if (_startKeys == null) {
+      _startKeys = _map.getTableFactory().getStartEndKeys(_map.getTableName()).getFirst();
+    }
+    return _startKeys;
+  }
+
+  private static int regionOf(byte[] row, byte[][] startKeys) {
+    int region = 0;
+    while (region + 1 < startKeys.length && Bytes.compareTo(row, startKeys[region + 1]) >= 0) {
+      region++;
+    }
+    return region;
+  }
+
+  private KeyValue newKeyValue(byte[] row, byte[] value) {
+    return new KeyValue(row, _map.getFamily(), _map.getDefaultQualifier(), _timestamp, value);
+  }
+
+  private StoreFile.Writer newWriter(Path path) throws IOException {
+    return new StoreFile.WriterBuilder(_configuration, _cacheConfig, _fs, BLOCK_SIZE).withFilePath(path)
+        .withComparator(KeyValue.COMPARATOR).build();
+  }
+
+  private void close(StoreFile.Writer writer) throws IOException {
+    writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+    writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(true));
+    writer.appendTrackedTimestampsToMetadata();
+    writer.close();
+  }
+
+}
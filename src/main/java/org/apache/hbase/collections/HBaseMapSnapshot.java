@@ -0,0 +1,558 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.MurmurHash;
+
+/**
+ * A read-only copy of an {@link HBaseMap} in a local memory-mapped file, for
+ * reference data that is read far more often than it changes. A lookup is a
+ * probe of an open-addressed hash index and a comparison of the encoded row,
+ * all reads of the mapped file, and only the value asked for is decoded. The
+ * entries live outside the heap.
+ * <p>
+ * The file holds a header, the rows and encoded values in row order and the
+ * index, an array of record offsets sized to a power of two at least twice
+ * the entry count. It is limited to 2GB.
+ * <p>
+ * {@link #refresh()} only fetches the values of cells written since the last
+ * refresh, less {@link #getRefreshOverlap(TimeUnit)} to allow for clock skew
+ * between this host and the region servers, plus the keys of the map to drop
+ * deleted entries. It writes a new file and swaps it in, readers keep seeing
+ * the previous snapshot until then. Cells written with older timestamps, such
+ * as those of an {@link HBaseMapLoader}, are only picked up by
+ * {@link #rebuild()}.
+ */
+public class HBaseMapSnapshot<K, V> extends AbstractMap<K, V> implements Closeable {
+
+  private static final int MAGIC = 0x484d5350;
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 32;
+  private static final int RECORD_HEADER_LENGTH = 8;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long DEFAULT_REFRESH_OVERLAP = TimeUnit.MINUTES.toMillis(1);
+  private static final MurmurHash HASH = (MurmurHash) MurmurHash.getInstance();
+
+  private final HBaseMap<K, V> _map;
+  private final File _file;
+  private volatile Mapped _mapped;
+  private volatile boolean _closed;
+  private long _refreshOverlap = DEFAULT_REFRESH_OVERLAP;
+
+  /**
+   * Opens the snapshot file and refreshes it, or builds it if it does not
+   * exist. An existing file is assumed to be a snapshot of the same map.
+   */
+  public HBaseMapSnapshot(HBaseMap<K, V> map, File file) throws IOException {
+    _map = map;
+    _file = file;
+    if (file.exists()) {
+      _mapped = Mapped.open(file);
+    }
+    refresh();
+  }
+
+  /**
+   * Brings the snapshot up to date with the map and returns the number of
+   * values fetched, see the class comment.
+   */
+  public synchronized long refresh() throws IOException {
+    return write(_mapped);
+  }
+
+  /**
+   * Rewrites the snapshot from a full scan of the map and returns the number
+   * of entries.
+   */
+  public synchronized long rebuild() throws IOException {
+    return write(null);
+  }
+
+  /**
+   * When the current snapshot was taken, by the clock of this host.
+   */
+  public long getTimestamp() {
+    return mapped()._timestamp;
+  }
+
+  public long getRefreshOverlap(TimeUnit unit) {
+    return unit.convert(_refreshOverlap, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * How far before the last refresh {@link #refresh()} looks for changed
+   * cells, at least the clock skew between this host and the region servers.
+   */
+  public synchronized void setRefreshOverlap(long overlap, TimeUnit unit) {
+    if (overlap < 0) {
+      throw new IllegalArgumentException("Refresh overlap [" + overlap + "] must not be negative.");
+    }
+    _refreshOverlap = unit.toMillis(overlap);
+  }
+
+  public File getFile() {
+    return _file;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V get(Object key) {
+    Mapped mapped = mapped();
+    int record = mapped.find(_map.getRow((K) key));
+    return record == 0 ? null : value(mapped, record);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public boolean containsKey(Object key) {
+    return mapped().find(_map.getRow((K) key)) != 0;
+  }
+
+  @Override
+  public int size() {
+    return mapped()._count;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Iterates the entries in row order, each decoding its value when asked
+   * for it.
+   */
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    final Mapped mapped = mapped();
+    return new AbstractSet<Map.Entry<K, V>>() {
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return new Iterator<Map.Entry<K, V>>() {
+          private int _record = HEADER_LENGTH;
+
+          @Override
+          public boolean hasNext() {
+            return _record < mapped._indexOffset;
+          }
+
+          @Override
+          public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = new SnapshotEntry(mapped, _record);
+            _record = mapped.next(_record);
+            return entry;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return mapped._count;
+      }
+    };
+  }
+
+  /**
+   * Unmaps the snapshot, the file is kept for the next instance to refresh.
+   */
+  @Override
+  public void close() {
+    _closed = true;
+    _mapped = null;
+  }
+
+  private class SnapshotEntry implements Map.Entry<K, V> {
+
+    private final Mapped _entryMapped;
+    private final int _record;
+    private final K _key;
+
+    SnapshotEntry(Mapped mapped, int record) {
+      _entryMapped = mapped;
+      _record = record;
+      byte[] row = mapped.row(record);
+      _key = _map.getKey(row, 0, row.length);
+    }
+
+    @Override
+    public K getKey() {
+      return _key;
+    }
+
+    @Override
+    public V getValue() {
+      return value(_entryMapped, _record);
+    }
+
+    @Override
+    public V setValue(V value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      V value = getValue();
+      return (_key == null ? e.getKey() == null : _key.equals(e.getKey()))
+          && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+      V value = getValue();
+      return (_key == null ? 0 : _key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return _key + "=" + getValue();
+    }
+  }
+
+  private V value(Mapped mapped, int record) {
+    byte[] value = mapped.value(record);
+    return _map.decodeValue(value, 0, value.length);
+  }
+
+  private Mapped mapped() {
+    Mapped mapped = _mapped;
+    if (mapped == null) {
+      throw new IllegalStateException(_closed ? "Closed." : "No snapshot.");
+    }
+    return mapped;
+  }
+
+  /**
+   * Writes a new snapshot next to the file, merging the changes into the
+   * given one or from a full scan when it is null, and swaps it in.
+   */
+  private long write(Mapped old) throws IOException {
+    if (_closed) {
+      throw new IllegalStateException("Closed.");
+    }
+    _map.flush();
+    long timestamp = System.currentTimeMillis();
+    File tmp = new File(_file.getPath() + ".tmp");
+    Writer writer = new Writer(tmp);
+    long fetched;
+    Mapped mapped;
+    try {
+      fetched = old == null ? copy(writer) : merge(old, writer);
+      writer.finish(timestamp);
+      mapped = Mapped.open(tmp);
+    } catch (IOException e) {
+      writer.close();
+      tmp.delete();
+      throw e;
+    } catch (RuntimeException e) {
+      writer.close();
+      tmp.delete();
+      throw e;
+    }
+    // the old mapping stays valid after its file is replaced
+    if (!tmp.renameTo(_file)) {
+      tmp.delete();
+      throw new IOException("Could not rename [" + tmp + "] to [" + _file + "].");
+    }
+    _mapped = mapped;
+    return fetched;
+  }
+
+  private long copy(Writer writer) throws IOException {
+    CloseableIterator<Result> rows = _map.resultIterator(newScan());
+    long fetched = 0;
+    try {
+      while (rows.hasNext()) {
+        if (append(writer, rows.next())) {
+          fetched++;
+        }
+      }
+    } finally {
+      rows.close();
+    }
+    return fetched;
+  }
+
+  /**
+   * Walks the keys of the map alongside the changed rows and the old
+   * snapshot, all in row order. Keys that are in neither, written after the
+   * scan of changed rows passed them, are fetched one by one.
+   */
+  private long merge(Mapped old, Writer writer) throws IOException {
+    Scan changedScan = newScan();
+    changedScan.setTimeRange(Math.max(0, old._timestamp - _refreshOverlap), Long.MAX_VALUE);
+    Scan keyScan = newScan();
+    keyScan.setFilter(new KeyOnlyFilter());
+    CloseableIterator<Result> changed = _map.resultIterator(changedScan);
+    CloseableIterator<Result> keys = null;
+    long fetched = 0;
+    try {
+      keys = _map.resultIterator(keyScan);
+      Result change = changed.hasNext() ? changed.next() : null;
+      int record = HEADER_LENGTH;
+      while (keys.hasNext()) {
+        byte[] row = keys.next().getRow();
+        while (change != null && Bytes.compareTo(change.getRow(), row) < 0) {
+          change = changed.hasNext() ? changed.next() : null;
+        }
+        if (change != null && Bytes.equals(change.getRow(), row)) {
+          append(writer, change);
+          fetched++;
+          continue;
+        }
+        int cmp = -1;
+        while (record < old._indexOffset && (cmp = old.compareRow(record, row)) < 0) {
+          record = old.next(record);
+        }
+        if (record < old._indexOffset && cmp == 0) {
+          byte[] value = old.value(record);
+          writer.append(row, value, 0, value.length);
+        } else if (append(writer, _map.getResult(row))) {
+          fetched++;
+        }
+      }
+    } finally {
+      changed.close();
+      if (keys != null) {
+        keys.close();
+      }
+    }
+    return fetched;
+  }
+
+  private boolean append(Writer writer, Result result) throws IOException {
+    KeyValue kv = result.getColumnLatest(_map.getFamily(), _map.getDefaultQualifier());
+    if (kv == null) {
+      return false;
+    }
+    writer.append(kv.getRow(), kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+    return true;
+  }
+
+  private Scan newScan() {
+    Scan scan = _map.newScan();
+    scan.setCacheBlocks(false);
+    return scan;
+  }
+
+  private static int hash(byte[] row, int length) {
+    return HASH.hash(row, 0, length, 0);
+  }
+
+  /**
+   * One version of the snapshot file. Only absolute reads are made on the
+   * buffer, so it is shared by all readers.
+   */
+  private static class Mapped {
+
+    final ByteBuffer _buffer;
+    final int _count;
+    final int _slots;
+    final int _indexOffset;
+    final long _timestamp;
+
+    private Mapped(ByteBuffer buffer) {
+      _buffer = buffer;
+      _count = buffer.getInt(8);
+      _slots = buffer.getInt(12);
+      _indexOffset = buffer.getInt(16);
+      _timestamp = buffer.getLong(24);
+    }
+
+    static Mapped open(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        long length = raf.length();
+        if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+          throw new IOException("[" + file + "] is not a map snapshot.");
+        }
+        MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_ONLY, 0, length);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+          throw new IOException("[" + file + "] is not a map snapshot.");
+        }
+        Mapped mapped = new Mapped(buffer);
+        if (mapped._indexOffset + (long) mapped._slots * 4 != length) {
+          throw new IOException("Map snapshot [" + file + "] is truncated.");
+        }
+        return mapped;
+      } finally {
+        raf.close();
+      }
+    }
+
+    /**
+     * The offset of the record with the row, 0 if there is none.
+     */
+    int find(byte[] row) {
+      int mask = _slots - 1;
+      int slot = hash(row, row.length) & mask;
+      while (true) {
+        int record = _buffer.getInt(_indexOffset + slot * 4);
+        if (record == 0 || compareRow(record, row) == 0) {
+          return record;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    int compareRow(int record, byte[] row) {
+      int length = _buffer.getInt(record);
+      int offset = record + RECORD_HEADER_LENGTH;
+      int n = Math.min(length, row.length);
+      for (int i = 0; i < n; i++) {
+        int cmp = (_buffer.get(offset + i) & 0xff) - (row[i] & 0xff);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return length - row.length;
+    }
+
+    int next(int record) {
+      return record + RECORD_HEADER_LENGTH + _buffer.getInt(record) + _buffer.getInt(record + 4);
+    }
+
+    byte[] row(int record) {
+      return copy(record + RECORD_HEADER_LENGTH, _buffer.getInt(record));
+    }
+
+    byte[] value(int record) {
+      return copy(record + RECORD_HEADER_LENGTH + _buffer.getInt(record), _buffer.getInt(record + 4));
+    }
+
+    private byte[] copy(int offset, int length) {
+      byte[] bytes = new byte[length];
+      ByteBuffer buffer = _buffer.duplicate();
+      buffer.position(offset);
+      buffer.get(bytes);
+      return bytes;
+    }
+  }
+
+  /**
+   * Streams the records to the file, then indexes them through a writable
+   * mapping so the index is never held on the heap.
+   */
+  private static class Writer implements Closeable {
+
+    private final File _file;
+    private final DataOutputStream _out;
+    private long _position = HEADER_LENGTH;
+    private int _count;
+
+    Writer(File file) throws IOException {
+      _file = file;
+      _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+      _out.write(new byte[HEADER_LENGTH]);
+    }
+
+    void append(byte[] row, byte[] buf, int offset, int length) throws IOException {
+      _position += RECORD_HEADER_LENGTH + row.length + length;
+      if (_position > Integer.MAX_VALUE) {
+        throw new IOException("Map snapshot [" + _file + "] exceeds 2GB.");
+      }
+      _out.writeInt(row.length);
+      _out.writeInt(length);
+      _out.write(row);
+      _out.write(buf, offset, length);
+      _count++;
+    }
+
+    void finish(long timestamp) throws IOException {
+      _out.close();
+      int indexOffset = (int) _position;
+      int slots = Integer.highestOneBit(Math.max(1, _count) * 2 - 1) << 1;
+      long length = indexOffset + (long) slots * 4;
+      if (slots <= 0 || length > Integer.MAX_VALUE) {
+        throw new IOException("Map snapshot [" + _file + "] exceeds 2GB.");
+      }
+      RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+      try {
+        raf.setLength(length);
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, length);
+        int mask = slots - 1;
+        byte[] row = new byte[256];
+        for (int record = HEADER_LENGTH; record < indexOffset;) {
+          int rowLength = buffer.getInt(record);
+          if (rowLength > row.length) {
+            row = new byte[Math.max(rowLength, row.length * 2)];
+          }
+          buffer.position(record + RECORD_HEADER_LENGTH);
+          buffer.get(row, 0, rowLength);
+          int slot = hash(row, rowLength) & mask;
+          while (buffer.getInt(indexOffset + slot * 4) != 0) {
+            slot = (slot + 1) & mask;
+          }
+          buffer.putInt(indexOffset + slot * 4, record);
+          record += RECORD_HEADER_LENGTH + rowLength + buffer.getInt(record + 4);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, _count);
+        buffer.putInt(12, slots);
+        buffer.putInt(16, indexOffset);
+        buffer.putLong(24, timestamp);
+        buffer.force();
+      } finally {
+        raf.close();
+      }
+    }
+
+    @Override
+    public void close() {
+      IOUtils.closeQuietly(_out);
+    }
+  }
+
+}
@@ -0,0 +1,850 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hbase.collections.MapMetrics.Operation;
+
+/**
+ * A {@link HBaseMap} whose keys are encoded order preserving, so the rows of
+ * the map are sorted in the natural order of its keys. Range views and
+ * ascending navigation map to bounded scans. HBase 0.94 has no reverse scans,
+ * so descending navigation uses {@link HTableInterface#getRowOrBefore} and
+ * descending iteration costs one round trip per entry, byte array keys one
+ * more scan to check no key sorts after the probe. Salted rows would
+ * lose the order, so navigable maps are never salted.
+ */
+public class HBaseNavigableMap<K, V> extends HBaseMap<K, V> implements ConcurrentNavigableMap<K, V> {
+
+  private static final byte[] ZERO = new byte[] { 0 };
+  private static final int PREDECESSOR_PADDING = 16;
+
+  private final K _lo;
+  private final boolean _loInclusive;
+  private final K _hi;
+  private final boolean _hiInclusive;
+  private final boolean _descending;
+  private final boolean _view;
+  private final byte[] _startRow;
+  private final byte[] _stopRow;
+
+  public HBaseNavigableMap(String table, String mapName) {
+    this(HBaseConfiguration.create(), table, mapName);
+  }
+
+  public HBaseNavigableMap(Configuration configuration, String table, String mapName) {
+    this(configuration, Bytes.toBytes(table), DEFAULT_FAMILY, Bytes.toBytes(mapName), DEFAULT_QUAL, DEFAULT_SIZE);
+  }
+
+  public HBaseNavigableMap(Configuration configuration, byte[] table, byte[] family, byte[] mapName,
+      byte[] defaultQualifier, byte[] sizeQualifier) {
+    super(HTableFactory.instance(configuration), table, family, mapName, defaultQualifier, sizeQualifier,
+        new SerializerFactory<K, V>(true));
+    _lo = null;
+    _loInclusive = false;
+    _hi = null;
+    _hiInclusive = false;
+    _descending = false;
+    _view = false;
+    _startRow = super.getStartRow();
+    _stopRow = super.getStopRow();
+  }
+
+  private HBaseNavigableMap(HBaseNavigableMap<K, V> map, K lo, boolean loInclusive, K hi, boolean hiInclusive,
+      boolean descending) {
+    super(map);
+    _lo = lo;
+    _loInclusive = loInclusive;
+    _hi = hi;
+    _hiInclusive = hiInclusive;
+    _descending = descending;
+    _view = true;
+    if (lo == null) {
+      _startRow = super.getStartRow();
+    } else {
+      _startRow = loInclusive ? getRow(lo) : Bytes.add(getRow(lo), ZERO);
+    }
+    if (hi == null) {
+      _stopRow = super.getStopRow();
+    } else {
+      _stopRow = hiInclusive ? Bytes.add(getRow(hi), ZERO) : getRow(hi);
+    }
+  }
+
+  @Override
+  protected byte[] getStartRow() {
+    return _startRow;
+  }
+
+  @Override
+  protected byte[] getStopRow() {
+    return _stopRow;
+  }
+
+  @Override
+  public CloseableIterator<Map.Entry<K, V>> entryIterator() {
+    if (_descending) {
+      flush();
+      return new DescendingIterator();
+    }
+    return super.entryIterator();
+  }
+
+  @Override
+  public CloseableIterator<K> keyIterator() {
+    if (_descending) {
+      flush();
+      final CloseableIterator<Map.Entry<K, V>> iterator = new DescendingIterator();
+      return new CloseableIterator<K>() {
+
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public K next() {
+          return iterator.next().getKey();
+        }
+
+        @Override
+        public void remove() {
+          iterator.remove();
+        }
+
+        @Override
+        public void close() {
+          iterator.close();
+        }
+      };
+    }
+    return super.keyIterator();
+  }
+
+  @Override
+  public int size() {
+    long size = sizeActual();
+    if (size > Integer.MAX_VALUE) {
+      return Integer.MAX_VALUE;
+    }
+    return (int) size;
+  }
+
+  /**
+   * Views with bounds count their entries with a scan, only the whole map
+   * uses the size counter.
+   */
+  @Override
+  public long sizeActual() {
+    if (_lo == null && _hi == null) {
+      return super.sizeActual();
+    }
+    long size = 0;
+    CloseableIterator<K> iterator = super.keyIterator();
+    try {
+      while (iterator.hasNext()) {
+        iterator.next();
+        size++;
+      }
+    } finally {
+      iterator.close();
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return first() == null;
+  }
+
+  @Override
+  public V get(Object key) {
+    if (!inRange(key)) {
+      return null;
+    }
+    return super.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (!inRange(key)) {
+      return false;
+    }
+    return super.containsKey(key);
+  }
+
+  @Override
+  public V put(K key, V value) {
+    checkRange(key);
+    return super.put(key, value);
+  }
+
+  @Override
+  public boolean set(K key, V value) {
+    checkRange(key);
+    return super.set(key, value);
+  }
+
+  @Override
+  public V putIfAbsent(K key, V value) {
+    checkRange(key);
+    return super.putIfAbsent(key, value);
+  }
+
+  @Override
+  public V replace(K key, V value) {
+    checkRange(key);
+    return super.replace(key, value);
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    checkRange(key);
+    return super.replace(key, oldValue, newValue);
+  }
+
+  @Override
+  public void putAll(Map<? extends K, ? extends V> m) {
+    for (K key : m.keySet()) {
+      checkRange(key);
+    }
+    super.putAll(m);
+  }
+
+  @Override
+  public V remove(Object key) {
+    if (!inRange(key)) {
+      return null;
+    }
+    return super.remove(key);
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    if (!inRange(key)) {
+      return false;
+    }
+    return super.remove(key, value);
+  }
+
+  @Override
+  public boolean delete(K key) {
+    if (!inRange(key)) {
+      return false;
+    }
+    return super.delete(key);
+  }
+
+  @Override
+  public Map<K, V> getAll(Collection<? extends K> keys) {
+    return super.getAll(keysInRange(keys));
+  }
+
+  @Override
+  public Map<K, V> removeAll(Collection<? extends K> keys) {
+    return super.removeAll(keysInRange(keys));
+  }
+
+  /**
+   * Views with bounds delete only their range and take the deleted entries
+   * off the size counter, the whole map resets it.
+   */
+  @Override
+  public void clear() {
+    if (_lo == null && _hi == null) {
+      super.clear();
+    } else {
+      updateSize(-deleteRange());
+    }
+  }
+
+  /**
+   * Views share the write-behind buffer of the map they were created from, so
+   * closing a view only flushes it.
+   */
+  @Override
+  public void close() {
+    if (_view) {
+      flush();
+    } else {
+      super.close();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Comparator<? super K> comparator() {
+    if (_descending) {
+      return (Comparator<? super K>) Collections.reverseOrder();
+    }
+    return null;
+  }
+
+  @Override
+  public Map.Entry<K, V> firstEntry() {
+    return toEntry(_descending ? last() : first());
+  }
+
+  @Override
+  public Map.Entry<K, V> lastEntry() {
+    return toEntry(_descending ? first() : last());
+  }
+
+  @Override
+  public K firstKey() {
+    return keyOrThrow(firstEntry());
+  }
+
+  @Override
+  public K lastKey() {
+    return keyOrThrow(lastEntry());
+  }
+
+  @Override
+  public Map.Entry<K, V> pollFirstEntry() {
+    while (true) {
+      Map.Entry<K, V> entry = firstEntry();
+      if (entry == null || remove(entry.getKey(), entry.getValue())) {
+        return entry;
+      }
+    }
+  }
+
+  @Override
+  public Map.Entry<K, V> pollLastEntry() {
+    while (true) {
+      Map.Entry<K, V> entry = lastEntry();
+      if (entry == null || remove(entry.getKey(), entry.getValue())) {
+        return entry;
+      }
+    }
+  }
+
+  @Override
+  public Map.Entry<K, V> lowerEntry(K key) {
+    return toEntry(_descending ? ceiling(key, false) : floor(key, false));
+  }
+
+  @Override
+  public Map.Entry<K, V> floorEntry(K key) {
+    return toEntry(_descending ? ceiling(key, true) : floor(key, true));
+  }
+
+  @Override
+  public Map.Entry<K, V> ceilingEntry(K key) {
+    return toEntry(_descending ? floor(key, true) : ceiling(key, true));
+  }
+
+  @Override
+  public Map.Entry<K, V> higherEntry(K key) {
+    return toEntry(_descending ? floor(key, false) : ceiling(key, false));
+  }
+
+  @Override
+  public K lowerKey(K key) {
+    return keyOrNull(lowerEntry(key));
+  }
+
+  @Override
+  public K floorKey(K key) {
+    return keyOrNull(floorEntry(key));
+  }
+
+  @Override
+  public K ceilingKey(K key) {
+    return keyOrNull(ceilingEntry(key));
+  }
+
+  @Override
+  public K higherKey(K key) {
+    return keyOrNull(higherEntry(key));
+  }
+
+  @Override
+  public HBaseNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+    if (fromKey == null || toKey == null) {
+      throw new NullPointerException();
+    }
+    if (_descending) {
+      return newView(toKey, toInclusive, fromKey, fromInclusive);
+    }
+    return newView(fromKey, fromInclusive, toKey, toInclusive);
+  }
+
+  @Override
+  public HBaseNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+    if (toKey == null) {
+      throw new NullPointerException();
+    }
+    if (_descending) {
+      return newView(toKey, inclusive, null, false);
+    }
+    return newView(null, false, toKey, inclusive);
+  }
+
+  @Override
+  public HBaseNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+    if (fromKey == null) {
+      throw new NullPointerException();
+    }
+    if (_descending) {
+      return newView(null, false, fromKey, inclusive);
+    }
+    return newView(fromKey, inclusive, null, false);
+  }
+
+  @Override
+  public HBaseNavigableMap<K, V> subMap(K fromKey, K toKey) {
+    return subMap(fromKey, true, toKey, false);
+  }
+
+  @Override
+  public HBaseNavigableMap<K, V> headMap(K toKey) {
+    return headMap(toKey, false);
+  }
+
+  @Override
+  public HBaseNavigableMap<K, V> tailMap(K fromKey) {
+    return tailMap(fromKey, true);
+  }
+
+  @Override
+  public HBaseNavigableMap<K, V> descendingMap() {
+    return new HBaseNavigableMap<K, V>(this, _lo, _loInclusive, _hi, _hiInclusive, !_descending);
+  }
+
+  @Override
+  public NavigableSet<K> keySet() {
+    return new KeySet<K>(this);
+  }
+
+  @Override
+  public NavigableSet<K> navigableKeySet() {
+    return new KeySet<K>(this);
+  }
+
+  @Override
+  public NavigableSet<K> descendingKeySet() {
+    return new KeySet<K>(descendingMap());
+  }
+
+  /**
+   * Creates a view with the given bounds in ascending order, a null key keeps
+   * the bound of this map.
+   */
+  private HBaseNavigableMap<K, V> newView(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+    if (lo == null) {
+      lo = _lo;
+      loInclusive = _loInclusive;
+    }
+    if (hi == null) {
+      hi = _hi;
+      hiInclusive = _hiInclusive;
+    }
+    HBaseNavigableMap<K, V> view = new HBaseNavigableMap<K, V>(this, lo, loInclusive, hi, hiInclusive, _descending);
+    if (Bytes.compareTo(view._startRow, _startRow) < 0 || Bytes.compareTo(view._stopRow, _stopRow) > 0) {
+      throw new IllegalArgumentException("key out of range");
+    }
+    if (Bytes.compareTo(view._startRow, view._stopRow) > 0) {
+      throw new IllegalArgumentException("inconsistent range");
+    }
+    return view;
+  }
+
+  @SuppressWarnings("unchecked")
+  private boolean inRange(Object key) {
+    byte[] row = getRow((K) key);
+    return Bytes.compareTo(row, _startRow) >= 0 && Bytes.compareTo(row, _stopRow) < 0;
+  }
+
+  private void checkRange(K key) {
+    if (!inRange(key)) {
+      throw new IllegalArgumentException("key out of range");
+    }
+  }
+
+  private Collection<? extends K> keysInRange(Collection<? extends K> keys) {
+    if (_lo == null && _hi == null) {
+      return keys;
+    }
+    List<K> inRange = new ArrayList<K>(keys.size());
+    for (K key : keys) {
+      if (inRange(key)) {
+        inRange.add(key);
+      }
+    }
+    return inRange;
+  }
+
+  private Map.Entry<K, V> toEntry(Result result) {
+    if (result == null) {
+      return null;
+    }
+    return new SimpleImmutableEntry<K, V>(getKey(result), getValue(result));
+  }
+
+  private static <K> K keyOrThrow(Map.Entry<K, ?> entry) {
+    if (entry == null) {
+      throw new NoSuchElementException();
+    }
+    return entry.getKey();
+  }
+
+  private static <K> K keyOrNull(Map.Entry<K, ?> entry) {
+    return entry == null ? null : entry.getKey();
+  }
+
+  private Result first() {
+    return firstAtOrAfter(_startRow);
+  }
+
+  private Result last() {
+    return lastBefore(_stopRow, false);
+  }
+
+  /**
+   * The first entry at or after (inclusive) or after (exclusive) the key.
+   */
+  private Result ceiling(K key, boolean inclusive) {
+    byte[] row = getRow(key);
+    if (!inclusive) {
+      row = Bytes.add(row, ZERO);
+    }
+    if (Bytes.compareTo(row, _startRow) < 0) {
+      row = _startRow;
+    }
+    return firstAtOrAfter(row);
+  }
+
+  /**
+   * The last entry at or before (inclusive) or before (exclusive) the key.
+   */
+  private Result floor(K key, boolean inclusive) {
+    byte[] row = getRow(key);
+    int c = Bytes.compareTo(row, _stopRow);
+    if (c > 0 || c == 0 && inclusive) {
+      return lastBefore(_stopRow, false);
+    }
+    return lastBefore(row, inclusive);
+  }
+
+  private Result firstAtOrAfter(final byte[] row) {
+    flush();
+    if (Bytes.compareTo(row, _stopRow) >= 0) {
+      return null;
+    }
+    return execute(new Command<Result>(Operation.NAVIGATE) {
+      @Override
+      Result execute(HTableInterface table) throws IOException {
+        Scan scan = newScan();
+        scan.setStartRow(row);
+        scan.setCaching(1);
+        getMetrics().rpc(Operation.NAVIGATE);
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+          return scanner.next();
+        } finally {
+          scanner.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Finds the last entry at or before (inclusive) or before (exclusive) the
+   * row. getRowOrBefore only searches the region holding the row, so when
+   * that region has no match the search continues in the regions before it
+   * down to the start of this map. It matches any cell of the family, rows
+   * without a value are skipped.
+   */
+  private Result lastBefore(final byte[] row, final boolean inclusive) {
+    flush();
+    int c = Bytes.compareTo(row, _startRow);
+    if (c < 0 || c == 0 && !inclusive) {
+      return null;
+    }
+    return execute(new Command<Result>(Operation.NAVIGATE) {
+      @Override
+      Result execute(HTableInterface table) throws IOException {
+        byte[] probe = inclusive ? row : probeBefore(table, row);
+        while (true) {
+          getMetrics().rpc(Operation.NAVIGATE);
+          Result result = table.getRowOrBefore(probe, getFamily());
+          if (result != null && result.getRow() != null) {
+            if (Bytes.compareTo(result.getRow(), _startRow) < 0) {
+              return null;
+            }
+            if (result.containsColumn(getFamily(), getDefaultQualifier())) {
+              return result;
+            }
+            // a row holding just a tombstone is not an entry
+            probe = probeBefore(table, result.getRow());
+            continue;
+          }
+          byte[] regionStart = getTableFactory().getRegionStartKey(getTableName(), probe);
+          if (regionStart.length == 0 || Bytes.compareTo(regionStart, _startRow) <= 0) {
+            return null;
+          }
+          probe = probeBefore(table, regionStart);
+        }
+      }
+    });
+  }
+
+  /**
+   * A probe for getRowOrBefore that finds the last row before the given one.
+   * Padding the predecessor with 0xFF bytes is enough for fixed width and
+   * string keys. Other keys may have rows between the probe and the row, so
+   * for them the padding grows until a scan finds no row in between.
+   */
+  private byte[] probeBefore(HTableInterface table, byte[] row) throws IOException {
+    byte[] probe = predecessor(row);
+    int tag = getMapName().length + 1;
+    if (probe.length < row.length || probe.length <= tag
+        || !getSerializerFactory().mayContainPadding(probe[tag])) {
+      return probe;
+    }
+    while (hasRowBetween(table, probe, row)) {
+      probe = Arrays.copyOf(probe, probe.length + PREDECESSOR_PADDING);
+      Arrays.fill(probe, probe.length - PREDECESSOR_PADDING, probe.length, (byte) 0xFF);
+    }
+    return probe;
+  }
+
+  private boolean hasRowBetween(HTableInterface table, byte[] from, byte[] to) throws IOException {
+    Scan scan = new Scan(Bytes.add(from, ZERO), to);
+    scan.addFamily(getFamily());
+    scan.setFilter(new KeyOnlyFilter());
+    scan.setCaching(1);
+    getMetrics().rpc(Operation.NAVIGATE);
+    ResultScanner scanner = table.getScanner(scan);
+    try {
+      return scanner.next() != null;
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /**
+   * A row that sorts before the given row and after every row of a fixed
+   * width or string key that does. Rows have no finite predecessor in
+   * general, see {@link #probeBefore(HTableInterface, byte[])}.
+   */
+  static byte[] predecessor(byte[] row) {
+    int last = row.length - 1;
+    if (row[last] == 0) {
+      return Arrays.copyOf(row, last);
+    }
+    byte[] predecessor = Arrays.copyOf(row, row.length + PREDECESSOR_PADDING);
+    predecessor[last]--;
+    Arrays.fill(predecessor, row.length, predecessor.length, (byte) 0xFF);
+    return predecessor;
+  }
+
+  private class DescendingIterator implements CloseableIterator<Map.Entry<K, V>> {
+
+    private Result _next = last();
+    private Result _last;
+
+    @Override
+    public boolean hasNext() {
+      return _next != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (_next == null) {
+        throw new NoSuchElementException();
+      }
+      _last = _next;
+      _next = lastBefore(_last.getRow(), false);
+      return new MapEntry(getKey(_last), getValue(_last));
+    }
+
+    @Override
+    public void remove() {
+      if (_last == null) {
+        throw new IllegalStateException();
+      }
+      HBaseNavigableMap.this.remove(getKey(_last));
+    }
+
+    @Override
+    public void close() {
+      _next = null;
+    }
+  }
+
+  static class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+
+    private final HBaseNavigableMap<K, ?> _map;
+
+    KeySet(HBaseNavigableMap<K, ?> map) {
+      _map = map;
+    }
+
+    @Override
+    public int size() {
+      return _map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return _map.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return _map.containsKey(o);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean remove(Object o) {
+      return _map.delete((K) o);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+      return _map.removeKeys(c);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+      return _map.retainKeys(c);
+    }
+
+    @Override
+    public void clear() {
+      _map.clear();
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+      return _map.keyIterator();
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+      return descendingSet().iterator();
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+      return _map.comparator();
+    }
+
+    @Override
+    public K first() {
+      return _map.firstKey();
+    }
+
+    @Override
+    public K last() {
+      return _map.lastKey();
+    }
+
+    @Override
+    public K lower(K e) {
+      return _map.lowerKey(e);
+    }
+
+    @Override
+    public K floor(K e) {
+      return _map.floorKey(e);
+    }
+
+    @Override
+    public K ceiling(K e) {
+      return _map.ceilingKey(e);
+    }
+
+    @Override
+    public K higher(K e) {
+      return _map.higherKey(e);
+    }
+
+    @Override
+    public K pollFirst() {
+      return keyOrNull(_map.pollFirstEntry());
+    }
+
+    @Override
+    public K pollLast() {
+      return keyOrNull(_map.pollLastEntry());
+    }
+
+    @Override
+    public NavigableSet<K> descendingSet() {
+      return new KeySet<K>(_map.descendingMap());
+    }
+
+    @Override
+    public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+      return new KeySet<K>(_map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+    }
+
+    @Override
+    public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+      return new KeySet<K>(_map.headMap(toElement, inclusive));
+    }
+
+    @Override
+    public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+      return new KeySet<K>(_map.tailMap(fromElement, inclusive));
+    }
+
+    @Override
+    public SortedSet<K> subSet(K fromElement, K toElement) {
+      return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public SortedSet<K> headSet(K toElement) {
+      return headSet(toElement, false);
+    }
+
+    @Override
+    public SortedSet<K> tailSet(K fromElement) {
+      return tailSet(fromElement, true);
+    }
+  }
+
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.Closeable;
+import java.util.AbstractSet;
+import java.util.Collection;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A set backed by HBase, laid out like a {@link HBaseMap} whose rows carry
+ * no value. HBase has no empty rows, so each element is a row with a single
+ * one byte cell, the encoded empty byte array. An empty cell would not do,
+ * the compare-and-set of {@link #add(Object)} treats it as absent. Membership
+ * checks and iteration never read the cell.
+ */
+public class HBaseSet<E> extends AbstractSet<E> implements Closeable {
+
+  private static final byte[] PRESENT = new byte[0];
+
+  private final HBaseMap<E, byte[]> _map;
+
+  public HBaseSet(String table, String setName) {
+    this(HBaseConfiguration.create(), table, setName);
+  }
+
+  public HBaseSet(Configuration configuration, String table, String setName) {
+    this(new HBaseMap<E, byte[]>(configuration, Bytes.toBytes(table), Bytes.toBytes(setName)));
+  }
+
+  public HBaseSet(Configuration configuration, byte[] table, byte[] family, byte[] setName, byte[] qualifier,
+      byte[] sizeQualifier) {
+    this(new HBaseMap<E, byte[]>(configuration, table, family, setName, qualifier, sizeQualifier));
+  }
+
+  protected HBaseSet(HBaseMap<E, byte[]> map) {
+    _map = map;
+  }
+
+  /**
+   * Returns true if the element was new, a single check-and-put plus the
+   * size update when it is.
+   */
+  @Override
+  public boolean add(E e) {
+    return _map.set(e, PRESENT);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public boolean remove(Object o) {
+    return _map.delete((E) o);
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    return _map.removeKeys(c);
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    return _map.retainKeys(c);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return _map.containsKey(o);
+  }
+
+  /**
+   * Streams the elements in row order, see {@link HBaseMap#keyIterator()}.
+   */
+  @Override
+  public CloseableIterator<E> iterator() {
+    return _map.keyIterator();
+  }
+
+  /**
+   * See {@link HBaseMap#clear()}.
+   */
+  @Override
+  public void clear() {
+    _map.clear();
+  }
+
+  @Override
+  public int size() {
+    return _map.size();
+  }
+
+  public long sizeActual() {
+    return _map.sizeActual();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    CloseableIterator<E> iterator = _map.keyIterator();
+    try {
+      return !iterator.hasNext();
+    } finally {
+      iterator.close();
+    }
+  }
+
+  public MapMetrics getMetrics() {
+    return _map.getMetrics();
+  }
+
+  @Override
+  public void close() {
+    _map.close();
+  }
+
+}
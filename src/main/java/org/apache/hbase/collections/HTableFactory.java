@@ -16,15 +16,58 @@
  */
 package org.apache.hbase.collections;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTableInterface;
-import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.hbase.zookeeper.ZKUtil;
 
-@SuppressWarnings("deprecation")
 public abstract class HTableFactory {
 
-  private static HTablePool _pool;
+  /**
+   * Maximum number of threads using tables of one configuration at a time.
+   * Tables held by scan iterators are not counted, an iterator the caller
+   * abandons would keep its permit forever.
+   */
+  public static final String MAX_CONCURRENCY = "hbase.collections.max.concurrency";
+  /**
+   * Maximum number of threads of the pool shared by the tables of one
+   * configuration for multi-region batches.
+   */
+  public static final String MAX_THREADS = "hbase.collections.threads.max";
+  /**
+   * Whether maps locate all regions of their table when they are created.
+   */
+  public static final String REGION_PREFETCH = "hbase.collections.region.prefetch";
+
+  private static final int DEFAULT_MAX_CONCURRENCY = 256;
+  private static final int DEFAULT_MAX_THREADS = 32;
+  private static final int MAX_EXECUTOR_THREADS = 64;
+  private static final Log LOG = LogFactory.getLog(HTableFactory.class);
+
+  private static final Map<String, ConnectionTableFactory> _factories = new HashMap<String, ConnectionTableFactory>();
+  private static ExecutorService _executor;
 
   public HTableInterface getInstance(String table) {
     return getInstance(Bytes.toBytes(table));
@@ -32,16 +75,234 @@ public abstract class HTableFactory {
 
   public abstract HTableInterface getInstance(byte[] table);
 
+  /**
+   * A table for a scan iterator, which may be held for as long as the
+   * caller likes. By default the same as {@link #getInstance(byte[])}.
+   */
+  public HTableInterface getScanInstance(byte[] table) {
+    return getInstance(table);
+  }
+
+  /**
+   * The start and end keys of the regions of the table, by default a single
+   * region covering all rows.
+   */
+  public Pair<byte[][], byte[][]> getStartEndKeys(byte[] table) throws IOException {
+    return new Pair<byte[][], byte[][]>(new byte[][] { HConstants.EMPTY_START_ROW },
+        new byte[][] { HConstants.EMPTY_END_ROW });
+  }
+
+  /**
+   * The start key of the region holding the row, by default the empty start
+   * row of a single region table.
+   */
+  public byte[] getRegionStartKey(byte[] table, byte[] row) throws IOException {
+    return HConstants.EMPTY_START_ROW;
+  }
+
+  /**
+   * Called when a map over the table is created, by default a no-op.
+   */
+  public void warmup(byte[] table) {
+
+  }
+
+  /**
+   * Shared pool of daemon threads for background work such as scanner
+   * prefetching. It has at most 64 threads, when all are busy a task runs in
+   * the submitting thread.
+   */
+  public ExecutorService getExecutor() {
+    return executor();
+  }
+
+  private synchronized static ExecutorService executor() {
+    if (_executor == null) {
+      _executor = new ThreadPoolExecutor(0, MAX_EXECUTOR_THREADS, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), daemonThreadFactory("hbase-collections-"),
+          new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+    return _executor;
+  }
+
+  private static ThreadFactory daemonThreadFactory(final String prefix) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * The factory for the configuration's cluster, created on first use and
+   * shared by every configuration with the same ZooKeeper quorum, client port
+   * and znode parent and the same settings of this class. All its tables
+   * share one connection and one bounded thread pool. At most
+   * {@link #MAX_CONCURRENCY} threads hold its tables at a time, a thread that
+   * already holds one is never blocked, so nested operations cannot deadlock.
+   */
   public synchronized static HTableFactory instance(Configuration configuration) {
-    if (_pool == null) {
-      _pool = new HTablePool(configuration, Integer.MAX_VALUE);
+    String key = key(configuration);
+    ConnectionTableFactory factory = _factories.get(key);
+    if (factory == null) {
+      try {
+        factory = new ConnectionTableFactory(configuration);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      _factories.put(key, factory);
     }
-    return new HTableFactory() {
+    return factory;
+  }
+
+  /**
+   * Closes the connection and thread pool of the configuration's factory.
+   * Maps still using it fail, the next {@link #instance(Configuration)} call
+   * creates a new factory.
+   */
+  public synchronized static void release(Configuration configuration) {
+    ConnectionTableFactory factory = _factories.remove(key(configuration));
+    if (factory != null) {
+      factory.close();
+    }
+  }
+
+  private static String key(Configuration configuration) {
+    return ZKUtil.getZooKeeperClusterKey(configuration) + "/"
+        + configuration.getInt(MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY) + "/"
+        + configuration.getInt(MAX_THREADS, DEFAULT_MAX_THREADS) + "/"
+        + configuration.getBoolean(REGION_PREFETCH, false);
+  }
+
+  private static class ConnectionTableFactory extends HTableFactory {
+
+    private final HConnection _connection;
+    private final ThreadPoolExecutor _pool;
+    private final Semaphore _permits;
+    private final boolean _regionPrefetch;
+    private final Set<String> _warmedUp = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ThreadLocal<AtomicInteger> _held = new ThreadLocal<AtomicInteger>() {
       @Override
-      public HTableInterface getInstance(byte[] table) {
-        return _pool.getTable(table);
+      protected AtomicInteger initialValue() {
+        return new AtomicInteger();
       }
     };
+
+    ConnectionTableFactory(Configuration configuration) throws IOException {
+      int maxThreads = configuration.getInt(MAX_THREADS, DEFAULT_MAX_THREADS);
+      _pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), daemonThreadFactory("hbase-collections-batch-"));
+      _pool.allowCoreThreadTimeOut(true);
+      _connection = HConnectionManager.createConnection(configuration, _pool);
+      _permits = new Semaphore(configuration.getInt(MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY));
+      _regionPrefetch = configuration.getBoolean(REGION_PREFETCH, false);
+    }
+
+    @Override
+    public HTableInterface getInstance(byte[] table) {
+      final AtomicInteger held = _held.get();
+      final boolean permitted;
+      if (held.get() == 0) {
+        try {
+          _permits.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+        permitted = true;
+      } else {
+        permitted = _permits.tryAcquire();
+      }
+      held.incrementAndGet();
+      try {
+        return new HTable(table, _connection, _pool) {
+          private boolean _closed;
+
+          @Override
+          public void close() throws IOException {
+            if (_closed) {
+              return;
+            }
+            _closed = true;
+            try {
+              super.close();
+            } finally {
+              release(held, permitted);
+            }
+          }
+        };
+      } catch (IOException e) {
+        release(held, permitted);
+        throw new RuntimeException(e);
+      } catch (RuntimeException e) {
+        release(held, permitted);
+        throw e;
+      }
+    }
+
+    /**
+     * Not counted against the permits, see {@link #MAX_CONCURRENCY}.
+     */
+    @Override
+    public HTableInterface getScanInstance(byte[] table) {
+      try {
+        return new HTable(table, _connection, _pool);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void release(AtomicInteger held, boolean permitted) {
+      held.decrementAndGet();
+      if (permitted) {
+        _permits.release();
+      }
+    }
+
+    @Override
+    public Pair<byte[][], byte[][]> getStartEndKeys(byte[] table) throws IOException {
+      HTable htable = new HTable(table, _connection, _pool);
+      try {
+        return htable.getStartEndKeys();
+      } finally {
+        htable.close();
+      }
+    }
+
+    @Override
+    public byte[] getRegionStartKey(byte[] table, byte[] row) throws IOException {
+      return _connection.getRegionLocation(table, row, false).getRegionInfo().getStartKey();
+    }
+
+    /**
+     * Locates all regions of the table once, so the first operations of the
+     * map do not each pay for a meta lookup.
+     */
+    @Override
+    public void warmup(byte[] table) {
+      if (!_regionPrefetch || !_warmedUp.add(Bytes.toString(table))) {
+        return;
+      }
+      try {
+        _connection.locateRegions(table);
+      } catch (IOException e) {
+        LOG.warn("Could not prefetch the regions of table [" + Bytes.toString(table) + "].", e);
+      }
+    }
+
+    void close() {
+      try {
+        _connection.close();
+      } catch (IOException e) {
+        LOG.warn("Could not close connection.", e);
+      } finally {
+        _pool.shutdown();
+      }
+    }
   }
 
 }
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Client side buffer of pending increments for an {@link HBaseCounterMap}
+ * with coalescing enabled. Deltas to the same key are summed so each flush
+ * sends a single increment per key.
+ */
+class IncrementBuffer<K> {
+
+  private static final Log LOG = LogFactory.getLog(IncrementBuffer.class);
+
+  private final HBaseCounterMap<K> _map;
+  private final int _maxKeys;
+  private final Object _flushLock = new Object();
+  private final ScheduledExecutorService _flusher;
+  private Map<K, long[]> _pending = new HashMap<K, long[]>();
+  private Map<K, long[]> _flushing = Collections.emptyMap();
+
+  IncrementBuffer(HBaseCounterMap<K> map, int maxKeys, long flushInterval, TimeUnit unit) {
+    _map = map;
+    _maxKeys = maxKeys;
+    if (flushInterval > 0) {
+      _flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "hbase-counter-map-coalescing");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      _flusher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            flush();
+          } catch (RuntimeException e) {
+            LOG.error("Background flush failed, pending increments will be retried.", e);
+          }
+        }
+      }, flushInterval, flushInterval, unit);
+    } else {
+      _flusher = null;
+    }
+  }
+
+  void add(K key, long delta) {
+    boolean full;
+    synchronized (this) {
+      long[] pending = _pending.get(key);
+      if (pending == null) {
+        _pending.put(key, new long[] { delta });
+      } else {
+        pending[0] += delta;
+      }
+      full = _pending.size() >= _maxKeys;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * The sum of the deltas not yet written for the key, null if there are none.
+   */
+  synchronized Long lookup(Object key) {
+    long[] pending = _pending.get(key);
+    long[] flushing = _flushing.get(key);
+    if (pending == null && flushing == null) {
+      return null;
+    }
+    return (pending == null ? 0 : pending[0]) + (flushing == null ? 0 : flushing[0]);
+  }
+
+  synchronized int pendingCount() {
+    return _pending.size() + _flushing.size();
+  }
+
+  void flush() {
+    synchronized (_flushLock) {
+      synchronized (this) {
+        if (_pending.isEmpty()) {
+          return;
+        }
+        _flushing = _pending;
+        _pending = new HashMap<K, long[]>();
+      }
+      boolean success = false;
+      try {
+        _map.writeIncrements(_flushing);
+        success = true;
+      } finally {
+        synchronized (this) {
+          if (!success) {
+            // keep the failed deltas, adding the ones buffered meanwhile
+            for (Entry<K, long[]> e : _pending.entrySet()) {
+              long[] flushing = _flushing.get(e.getKey());
+              if (flushing == null) {
+                _flushing.put(e.getKey(), e.getValue());
+              } else {
+                flushing[0] += e.getValue()[0];
+              }
+            }
+            _pending = _flushing;
+          }
+          _flushing = Collections.emptyMap();
+        }
+      }
+    }
+  }
+
+  void close() {
+    if (_flusher != null) {
+      _flusher.shutdown();
+    }
+    flush();
+  }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock and allocation free latency histogram with power of two buckets, so
+ * percentiles are accurate to within a factor of two.
+ */
+class LatencyHistogram {
+
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong _count = new AtomicLong();
+  private final AtomicLong _totalNanos = new AtomicLong();
+  private final AtomicLong _maxNanos = new AtomicLong();
+
+  void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    _buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+    _count.incrementAndGet();
+    _totalNanos.addAndGet(nanos);
+    long max;
+    while (nanos > (max = _maxNanos.get())) {
+      if (_maxNanos.compareAndSet(max, nanos)) {
+        break;
+      }
+    }
+  }
+
+  long getCount() {
+    return _count.get();
+  }
+
+  long getMeanNanos() {
+    long count = _count.get();
+    return count == 0 ? 0 : _totalNanos.get() / count;
+  }
+
+  long getMaxNanos() {
+    return _maxNanos.get();
+  }
+
+  /**
+   * The upper bound of the bucket holding the given percentile, between 0
+   * and 1, capped at the largest value recorded.
+   */
+  long getPercentileNanos(double percentile) {
+    long count = 0;
+    long[] buckets = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = _buckets.get(i);
+      count += buckets[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(count * percentile);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i];
+      if (seen >= rank && buckets[i] != 0) {
+        long upper = i == 0 ? 0 : (1L << i) - 1;
+        return Math.min(upper, _maxNanos.get());
+      }
+    }
+    return _maxNanos.get();
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      _buckets.set(i, 0);
+    }
+    _count.set(0);
+    _totalNanos.set(0);
+    _maxNanos.set(0);
+  }
+
+}
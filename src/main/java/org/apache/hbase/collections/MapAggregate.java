@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Count, sum, min, max and average of the values of a map, computed by
+ * {@link MapEndpoint} per region and combined on the client. Only values
+ * written by the built-in number codecs are numeric, the others are counted
+ * but not summed. Sums are doubles, so integers beyond 2^53 lose precision.
+ */
+public class MapAggregate implements Writable {
+
+  private long _count;
+  private long _numericCount;
+  private double _sum;
+  private double _min = Double.POSITIVE_INFINITY;
+  private double _max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * The number of entries.
+   */
+  public long getCount() {
+    return _count;
+  }
+
+  /**
+   * The number of entries with numeric values.
+   */
+  public long getNumericCount() {
+    return _numericCount;
+  }
+
+  public double getSum() {
+    return _sum;
+  }
+
+  /**
+   * The smallest numeric value, NaN if there is none.
+   */
+  public double getMin() {
+    return _numericCount == 0 ? Double.NaN : _min;
+  }
+
+  /**
+   * The largest numeric value, NaN if there is none.
+   */
+  public double getMax() {
+    return _numericCount == 0 ? Double.NaN : _max;
+  }
+
+  /**
+   * The mean of the numeric values, NaN if there is none.
+   */
+  public double getAverage() {
+    return _numericCount == 0 ? Double.NaN : _sum / _numericCount;
+  }
+
+  void add(Number value) {
+    _count++;
+    if (value != null) {
+      double d = value.doubleValue();
+      _numericCount++;
+      _sum += d;
+      _min = Math.min(_min, d);
+      _max = Math.max(_max, d);
+    }
+  }
+
+  void combine(MapAggregate other) {
+    _count += other._count;
+    _numericCount += other._numericCount;
+    _sum += other._sum;
+    _min = Math.min(_min, other._min);
+    _max = Math.max(_max, other._max);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(_count);
+    out.writeLong(_numericCount);
+    out.writeDouble(_sum);
+    out.writeDouble(_min);
+    out.writeDouble(_max);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    _count = in.readLong();
+    _numericCount = in.readLong();
+    _sum = in.readDouble();
+    _min = in.readDouble();
+    _max = in.readDouble();
+  }
+
+  @Override
+  public String toString() {
+    return "MapAggregate [count=" + _count + ", numericCount=" + _numericCount + ", sum=" + _sum + ", min="
+        + getMin() + ", max=" + getMax() + "]";
+  }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+/**
+ * The latest change of a key returned by
+ * {@link HBaseMap#entriesModifiedSince(long)}, either its new value or its
+ * deletion.
+ */
+public class MapChange<K, V> {
+
+  private final K _key;
+  private final V _value;
+  private final boolean _deleted;
+  private final long _timestamp;
+
+  MapChange(K key, V value, boolean deleted, long timestamp) {
+    _key = key;
+    _value = value;
+    _deleted = deleted;
+    _timestamp = timestamp;
+  }
+
+  public K getKey() {
+    return _key;
+  }
+
+  /**
+   * The value written, null for deletions.
+   */
+  public V getValue() {
+    return _value;
+  }
+
+  public boolean isDeleted() {
+    return _deleted;
+  }
+
+  /**
+   * The cell timestamp of the change.
+   */
+  public long getTimestamp() {
+    return _timestamp;
+  }
+
+  @Override
+  public String toString() {
+    return _deleted ? "-" + _key + "@" + _timestamp : _key + "=" + _value + "@" + _timestamp;
+  }
+
+}
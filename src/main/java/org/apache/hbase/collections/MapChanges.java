@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * The changes returned by {@link HBaseMap#entriesModifiedSince(long)}
+ * together with the watermark to continue from. A row holding both a value
+ * and a tombstone in the time range was deleted and written again, the later
+ * cell wins.
+ */
+public class MapChanges<K, V> implements CloseableIterator<MapChange<K, V>> {
+
+  private final HBaseMap<K, V> _map;
+  private final CloseableIterator<Result> _results;
+  private final byte[] _tombstoneQualifier;
+  private final long _watermark;
+
+  MapChanges(HBaseMap<K, V> map, CloseableIterator<Result> results, byte[] tombstoneQualifier, long watermark) {
+    _map = map;
+    _results = results;
+    _tombstoneQualifier = tombstoneQualifier;
+    _watermark = watermark;
+  }
+
+  /**
+   * The time to pass to the next call of
+   * {@link HBaseMap#entriesModifiedSince(long)}.
+   */
+  public long getWatermark() {
+    return _watermark;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return _results.hasNext();
+  }
+
+  @Override
+  public MapChange<K, V> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Result result = _results.next();
+    K key = _map.getKey(result);
+    KeyValue value = result.getColumnLatest(_map.getFamily(), _map.getDefaultQualifier());
+    KeyValue tombstone = _tombstoneQualifier == null ? null : result.getColumnLatest(_map.getFamily(),
+        _tombstoneQualifier);
+    if (value != null && (tombstone == null || value.getTimestamp() >= tombstone.getTimestamp())) {
+      V v = _map.decodeValue(value.getBuffer(), value.getValueOffset(), value.getValueLength());
+      return new MapChange<K, V>(key, v, false, value.getTimestamp());
+    }
+    return new MapChange<K, V>(key, null, true, tombstone.getTimestamp());
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() {
+    _results.close();
+  }
+
+}
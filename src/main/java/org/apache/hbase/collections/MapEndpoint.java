@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+
+/**
+ * Region endpoint implementing {@link MapProtocol}. Load it on the map table,
+ * either for one table with
+ * {@code HTableDescriptor.addCoprocessor(MapEndpoint.class.getName())} or for
+ * all tables through {@code hbase.coprocessor.region.classes}, and switch the
+ * map to it with {@link HBaseMap#setUseEndpoint(boolean)}.
+ * <p>
+ * The size counter is incremented after the row lock is released. When the
+ * size row lives in another region it is incremented through a table from
+ * the coprocessor environment, a call between region servers rather than an
+ * extra client round trip.
+ */
+public class MapEndpoint extends BaseEndpointCoprocessor implements MapProtocol {
+
+  private final SerializerFactory<Object, Object> _serializerFactory = new SerializerFactory<Object, Object>();
+
+  @Override
+  public byte[] put(byte[] row, byte[] family, byte[] qualifier, byte[] value, byte[] sizeRow, byte[] sizeQualifier)
+      throws IOException {
+    HRegion region = getRegion();
+    byte[] previous;
+    Integer lock = region.obtainRowLock(row);
+    try {
+      previous = current(region, row, family, qualifier, lock);
+      region.put(new Put(row).add(family, qualifier, value), lock);
+    } finally {
+      region.releaseRowLock(lock);
+    }
+    if (previous == null) {
+      updateSize(region, sizeRow, family, sizeQualifier, 1);
+    }
+    return previous;
+  }
+
+  @Override
+  public byte[] remove(byte[] row, byte[] family, byte[] qualifier, byte[] sizeRow, byte[] sizeQualifier)
+      throws IOException {
+    HRegion region = getRegion();
+    byte[] previous;
+    Integer lock = region.obtainRowLock(row);
+    try {
+      previous = current(region, row, family, qualifier, lock);
+      if (previous == null) {
+        return null;
+      }
+      Delete delete = new Delete(row);
+      delete.deleteColumns(family, qualifier);
+      region.delete(delete, lock, true);
+    } finally {
+      region.releaseRowLock(lock);
+    }
+    updateSize(region, sizeRow, family, sizeQualifier, -1);
+    return previous;
+  }
+
+  @Override
+  public byte[] putIfAbsent(byte[] row, byte[] family, byte[] qualifier, byte[] value, byte[] sizeRow,
+      byte[] sizeQualifier) throws IOException {
+    HRegion region = getRegion();
+    Integer lock = region.obtainRowLock(row);
+    try {
+      byte[] existing = current(region, row, family, qualifier, lock);
+      if (existing != null) {
+        return existing;
+      }
+      region.put(new Put(row).add(family, qualifier, value), lock);
+    } finally {
+      region.releaseRowLock(lock);
+    }
+    updateSize(region, sizeRow, family, sizeQualifier, 1);
+    return null;
+  }
+
+  @Override
+  public byte[] replace(byte[] row, byte[] family, byte[] qualifier, byte[] value) throws IOException {
+    HRegion region = getRegion();
+    Integer lock = region.obtainRowLock(row);
+    try {
+      byte[] previous = current(region, row, family, qualifier, lock);
+      if (previous != null) {
+        region.put(new Put(row).add(family, qualifier, value), lock);
+      }
+      return previous;
+    } finally {
+      region.releaseRowLock(lock);
+    }
+  }
+
+  @Override
+  public long count(byte[] startRow, byte[] stopRow, byte[] family, byte[] qualifier) throws IOException {
+    Scan scan = new Scan(startRow, stopRow);
+    scan.addColumn(family, qualifier);
+    scan.setFilter(new KeyOnlyFilter());
+    InternalScanner scanner = getRegion().getScanner(scan);
+    try {
+      long count = 0;
+      List<KeyValue> kvs = new ArrayList<KeyValue>();
+      boolean more;
+      do {
+        more = scanner.next(kvs);
+        if (!kvs.isEmpty()) {
+          count++;
+          kvs.clear();
+        }
+      } while (more);
+      return count;
+    } finally {
+      scanner.close();
+    }
+  }
+
+  @Override
+  public MapAggregate aggregate(byte[] startRow, byte[] stopRow, byte[] family, byte[] qualifier)
+      throws IOException {
+    Scan scan = new Scan(startRow, stopRow);
+    scan.addColumn(family, qualifier);
+    InternalScanner scanner = getRegion().getScanner(scan);
+    try {
+      MapAggregate aggregate = new MapAggregate();
+      List<KeyValue> kvs = new ArrayList<KeyValue>();
+      boolean more;
+      do {
+        more = scanner.next(kvs);
+        if (!kvs.isEmpty()) {
+          KeyValue kv = kvs.get(0);
+          aggregate.add(_serializerFactory.toNumber(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength()));
+          kvs.clear();
+        }
+      } while (more);
+      return aggregate;
+    } finally {
+      scanner.close();
+    }
+  }
+
+  private HRegion getRegion() {
+    return ((RegionCoprocessorEnvironment) getEnvironment()).getRegion();
+  }
+
+  private static byte[] current(HRegion region, byte[] row, byte[] family, byte[] qualifier, Integer lock)
+      throws IOException {
+    return region.get(new Get(row).addColumn(family, qualifier), lock).getValue(family, qualifier);
+  }
+
+  private void updateSize(HRegion region, byte[] sizeRow, byte[] family, byte[] sizeQualifier, long sizeChange)
+      throws IOException {
+    if (sizeRow == null) {
+      return;
+    }
+    if (region.getRegionInfo().containsRow(sizeRow)) {
+      Increment increment = new Increment(sizeRow);
+      increment.addColumn(family, sizeQualifier, sizeChange);
+      region.increment(increment, null, true);
+      return;
+    }
+    HTableInterface table = getEnvironment().getTable(region.getTableDesc().getName());
+    try {
+      table.incrementColumnValue(sizeRow, family, sizeQualifier, sizeChange);
+    } finally {
+      table.close();
+    }
+  }
+
+}
@@ -0,0 +1,306 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Latencies, RPC and compare-and-set retry counts per operation of a map plus
+ * the bytes and scanner rows it moved. Recording never blocks or allocates.
+ * Published over JMX with {@link HBaseMap#registerMBean()}, each operation
+ * shows up as a group of attributes such as <code>PutCount</code>,
+ * <code>PutRpcs</code>, <code>PutCasRetries</code> and
+ * <code>PutP99LatencyMicros</code>.
+ */
+public class MapMetrics implements DynamicMBean {
+
+  public enum Operation {
+    GET, CONTAINS_KEY, PUT, SET, PUT_IF_ABSENT, REPLACE, REMOVE, DELETE, SIZE, UPDATE_SIZE, GET_ALL, PUT_ALL,
+    REMOVE_ALL, CLEAR, FLUSH, SCAN, NAVIGATE, AGGREGATE, INCREMENT, PURGE_TOMBSTONES;
+
+    final String _attributePrefix;
+
+    private Operation() {
+      StringBuilder builder = new StringBuilder();
+      for (String part : name().split("_")) {
+        builder.append(part.charAt(0)).append(part.substring(1).toLowerCase());
+      }
+      _attributePrefix = builder.toString();
+    }
+  }
+
+  private static final Operation[] OPERATIONS = Operation.values();
+  private static final String[] PERCENTILES = { "P50", "P99", "P999" };
+  private static final double[] PERCENTILE_VALUES = { 0.5, 0.99, 0.999 };
+
+  private final LatencyHistogram[] _latencies = new LatencyHistogram[OPERATIONS.length];
+  private final AtomicLongArray _rpcs = new AtomicLongArray(OPERATIONS.length);
+  private final AtomicLongArray _casRetries = new AtomicLongArray(OPERATIONS.length);
+  private final AtomicLongArray _casFailures = new AtomicLongArray(OPERATIONS.length);
+  private final AtomicLong _casBackoffNanos = new AtomicLong();
+  private final LatencyHistogram _tableCheckout = new LatencyHistogram();
+  private final AtomicLong _bytesSerialized = new AtomicLong();
+  private final AtomicLong _bytesDeserialized = new AtomicLong();
+  private final AtomicLong _scannerRows = new AtomicLong();
+  private final Set<String> _attributeNames = new HashSet<String>();
+  private final MBeanInfo _info;
+
+  MapMetrics() {
+    for (int i = 0; i < _latencies.length; i++) {
+      _latencies[i] = new LatencyHistogram();
+    }
+    List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+    for (Operation operation : OPERATIONS) {
+      String prefix = operation._attributePrefix;
+      addAttribute(attributes, prefix + "Count", "Completed " + prefix + " operations");
+      addAttribute(attributes, prefix + "Rpcs", "RPCs made by " + prefix + " operations");
+      addAttribute(attributes, prefix + "CasRetries", "Failed compare-and-sets retried by " + prefix + " operations");
+      addAttribute(attributes, prefix + "CasFailures", prefix + " operations given up by the retry policy");
+      addAttribute(attributes, prefix + "MeanLatencyMicros", "Mean latency of " + prefix + " operations");
+      for (String percentile : PERCENTILES) {
+        addAttribute(attributes, prefix + percentile + "LatencyMicros", percentile + " latency of " + prefix
+            + " operations");
+      }
+      addAttribute(attributes, prefix + "MaxLatencyMicros", "Max latency of " + prefix + " operations");
+    }
+    addAttribute(attributes, "TableCheckoutCount", "Tables checked out of the table factory");
+    addAttribute(attributes, "TableCheckoutMeanLatencyMicros", "Mean latency of table checkouts");
+    addAttribute(attributes, "TableCheckoutMaxLatencyMicros", "Max latency of table checkouts");
+    addAttribute(attributes, "CasBackoffMillis", "Time spent backing off before compare-and-set retries");
+    addAttribute(attributes, "BytesSerialized", "Bytes of rows and values encoded");
+    addAttribute(attributes, "BytesDeserialized", "Bytes of cells decoded");
+    addAttribute(attributes, "ScannerRows", "Rows fetched by scanners");
+    MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Resets all metrics", new MBeanParameterInfo[0],
+        "void", MBeanOperationInfo.ACTION);
+    _info = new MBeanInfo(getClass().getName(), "HBaseMap metrics",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[] { reset },
+        new MBeanNotificationInfo[0]);
+  }
+
+  private void addAttribute(List<MBeanAttributeInfo> attributes, String name, String description) {
+    attributes.add(new MBeanAttributeInfo(name, "long", description, true, false, false));
+    _attributeNames.add(name);
+  }
+
+  void record(Operation operation, long nanos) {
+    _latencies[operation.ordinal()].record(nanos);
+  }
+
+  void rpc(Operation operation) {
+    _rpcs.incrementAndGet(operation.ordinal());
+  }
+
+  void casRetry(Operation operation) {
+    _casRetries.incrementAndGet(operation.ordinal());
+  }
+
+  void casFailure(Operation operation) {
+    _casFailures.incrementAndGet(operation.ordinal());
+  }
+
+  void casBackoff(long nanos) {
+    _casBackoffNanos.addAndGet(nanos);
+  }
+
+  void tableCheckout(long nanos) {
+    _tableCheckout.record(nanos);
+  }
+
+  void serialized(int bytes) {
+    _bytesSerialized.addAndGet(bytes);
+  }
+
+  void deserialized(int bytes) {
+    _bytesDeserialized.addAndGet(bytes);
+  }
+
+  void scannerRows(int rows) {
+    _scannerRows.addAndGet(rows);
+  }
+
+  public long getCount(Operation operation) {
+    return _latencies[operation.ordinal()].getCount();
+  }
+
+  public long getRpcCount(Operation operation) {
+    return _rpcs.get(operation.ordinal());
+  }
+
+  public long getCasRetries(Operation operation) {
+    return _casRetries.get(operation.ordinal());
+  }
+
+  /**
+   * Operations that threw a {@link CasContentionException}.
+   */
+  public long getCasFailures(Operation operation) {
+    return _casFailures.get(operation.ordinal());
+  }
+
+  public long getCasBackoff(TimeUnit unit) {
+    return unit.convert(_casBackoffNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  public long getMeanLatency(Operation operation, TimeUnit unit) {
+    return unit.convert(_latencies[operation.ordinal()].getMeanNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  public long getMaxLatency(Operation operation, TimeUnit unit) {
+    return unit.convert(_latencies[operation.ordinal()].getMaxNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * The latency the given fraction of the operations stayed under, rounded up
+   * to the next power of two nanoseconds.
+   */
+  public long getLatencyPercentile(Operation operation, double percentile, TimeUnit unit) {
+    return unit.convert(_latencies[operation.ordinal()].getPercentileNanos(percentile), TimeUnit.NANOSECONDS);
+  }
+
+  public long getTableCheckoutCount() {
+    return _tableCheckout.getCount();
+  }
+
+  public long getBytesSerialized() {
+    return _bytesSerialized.get();
+  }
+
+  public long getBytesDeserialized() {
+    return _bytesDeserialized.get();
+  }
+
+  public long getScannerRows() {
+    return _scannerRows.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      _latencies[i].reset();
+      _rpcs.set(i, 0);
+      _casRetries.set(i, 0);
+      _casFailures.set(i, 0);
+    }
+    _casBackoffNanos.set(0);
+    _tableCheckout.reset();
+    _bytesSerialized.set(0);
+    _bytesDeserialized.set(0);
+    _scannerRows.set(0);
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    if (!_attributeNames.contains(attribute)) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    if (attribute.equals("TableCheckoutCount")) {
+      return _tableCheckout.getCount();
+    } else if (attribute.equals("TableCheckoutMeanLatencyMicros")) {
+      return TimeUnit.NANOSECONDS.toMicros(_tableCheckout.getMeanNanos());
+    } else if (attribute.equals("TableCheckoutMaxLatencyMicros")) {
+      return TimeUnit.NANOSECONDS.toMicros(_tableCheckout.getMaxNanos());
+    } else if (attribute.equals("CasBackoffMillis")) {
+      return getCasBackoff(TimeUnit.MILLISECONDS);
+    } else if (attribute.equals("BytesSerialized")) {
+      return getBytesSerialized();
+    } else if (attribute.equals("BytesDeserialized")) {
+      return getBytesDeserialized();
+    } else if (attribute.equals("ScannerRows")) {
+      return getScannerRows();
+    }
+    for (Operation operation : OPERATIONS) {
+      String prefix = operation._attributePrefix;
+      if (!attribute.startsWith(prefix)) {
+        continue;
+      }
+      String metric = attribute.substring(prefix.length());
+      if (metric.equals("Count")) {
+        return getCount(operation);
+      } else if (metric.equals("Rpcs")) {
+        return getRpcCount(operation);
+      } else if (metric.equals("CasRetries")) {
+        return getCasRetries(operation);
+      } else if (metric.equals("CasFailures")) {
+        return getCasFailures(operation);
+      } else if (metric.equals("MeanLatencyMicros")) {
+        return getMeanLatency(operation, TimeUnit.MICROSECONDS);
+      } else if (metric.equals("MaxLatencyMicros")) {
+        return getMaxLatency(operation, TimeUnit.MICROSECONDS);
+      }
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        if (metric.equals(PERCENTILES[i] + "LatencyMicros")) {
+          return getLatencyPercentile(operation, PERCENTILE_VALUES[i], TimeUnit.MICROSECONDS);
+        }
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        // left out as the contract asks
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException(attribute.getName() + " is read only");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    if (actionName.equals("reset")) {
+      reset();
+      return null;
+    }
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    return _info;
+  }
+
+}
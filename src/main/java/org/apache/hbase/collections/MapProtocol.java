@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+
+/**
+ * Map operations executed by {@link MapEndpoint} inside the regions holding
+ * the rows. The single row calls are one round trip each and hold the row
+ * lock for the read and the write. Calls that change the number of entries
+ * increment the size counter at sizeRow, pass null to leave it alone.
+ * <p>
+ * The range calls cover the part of [startRow, stopRow) held by the region
+ * they run in and return a partial result for the client to combine.
+ */
+public interface MapProtocol extends CoprocessorProtocol {
+
+  /**
+   * Writes the value and returns the previous one, null if there was none.
+   */
+  byte[] put(byte[] row, byte[] family, byte[] qualifier, byte[] value, byte[] sizeRow, byte[] sizeQualifier)
+      throws IOException;
+
+  /**
+   * Deletes the value and returns it, null if there was none.
+   */
+  byte[] remove(byte[] row, byte[] family, byte[] qualifier, byte[] sizeRow, byte[] sizeQualifier)
+      throws IOException;
+
+  /**
+   * Writes the value unless there is one and returns the existing value, null
+   * if the value was written.
+   */
+  byte[] putIfAbsent(byte[] row, byte[] family, byte[] qualifier, byte[] value, byte[] sizeRow,
+      byte[] sizeQualifier) throws IOException;
+
+  /**
+   * Writes the value only if there is one and returns the previous value,
+   * null if nothing was written.
+   */
+  byte[] replace(byte[] row, byte[] family, byte[] qualifier, byte[] value) throws IOException;
+
+  /**
+   * Counts the rows having the column, reading only their keys.
+   */
+  long count(byte[] startRow, byte[] stopRow, byte[] family, byte[] qualifier) throws IOException;
+
+  /**
+   * Counts the rows having the column and reduces their numeric values.
+   */
+  MapAggregate aggregate(byte[] startRow, byte[] stopRow, byte[] family, byte[] qualifier) throws IOException;
+
+}
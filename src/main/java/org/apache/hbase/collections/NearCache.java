@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of values read by an {@link HBaseMap}. Entries expire
+ * after the configured time to live and are evicted in least recently used
+ * order once either the entry or the byte budget is exceeded.
+ */
+class NearCache<K, V> {
+
+  private static final int VERSION_STRIPES = 64;
+
+  static class CachedValue<V> {
+    final V _value;
+    final int _weight;
+    final long _expires;
+
+    CachedValue(V value, int weight, long expires) {
+      _value = value;
+      _weight = weight;
+      _expires = expires;
+    }
+  }
+
+  private final LinkedHashMap<Object, CachedValue<V>> _cache = new LinkedHashMap<Object, CachedValue<V>>(16, 0.75f,
+      true);
+  private final int _maxEntries;
+  private final long _maxBytes;
+  private final long _ttlNanos;
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final long[] _versions = new long[VERSION_STRIPES];
+  private long _bytes;
+
+  NearCache(int maxEntries, long maxBytes, long ttl, TimeUnit unit) {
+    _maxEntries = maxEntries;
+    _maxBytes = maxBytes;
+    _ttlNanos = unit.toNanos(ttl);
+  }
+
+  /**
+   * Returns the cached value or null on a miss.
+   */
+  CachedValue<V> get(Object key) {
+    CachedValue<V> cachedValue;
+    synchronized (this) {
+      cachedValue = _cache.get(key);
+      if (cachedValue != null && cachedValue._expires - System.nanoTime() <= 0) {
+        remove(key);
+        cachedValue = null;
+      }
+    }
+    if (cachedValue == null) {
+      _misses.incrementAndGet();
+    } else {
+      _hits.incrementAndGet();
+    }
+    return cachedValue;
+  }
+
+  /**
+   * The version of the key's stripe of keys changes when one of them is
+   * invalidated, a value read from the table is only cached if no key of its
+   * stripe was invalidated while it was being read.
+   */
+  synchronized long version(Object key) {
+    return _versions[stripe(key)];
+  }
+
+  synchronized void put(K key, V value, int weight, long version) {
+    if (version != _versions[stripe(key)] || weight > _maxBytes) {
+      return;
+    }
+    remove(key);
+    _cache.put(key, new CachedValue<V>(value, weight, System.nanoTime() + _ttlNanos));
+    _bytes += weight;
+    Iterator<CachedValue<V>> iterator = _cache.values().iterator();
+    while ((_cache.size() > _maxEntries || _bytes > _maxBytes) && iterator.hasNext()) {
+      _bytes -= iterator.next()._weight;
+      iterator.remove();
+    }
+  }
+
+  synchronized void invalidate(Object key) {
+    _versions[stripe(key)]++;
+    remove(key);
+  }
+
+  synchronized void invalidateAll() {
+    for (int i = 0; i < VERSION_STRIPES; i++) {
+      _versions[i]++;
+    }
+    _cache.clear();
+    _bytes = 0;
+  }
+
+  synchronized int size() {
+    return _cache.size();
+  }
+
+  long getHitCount() {
+    return _hits.get();
+  }
+
+  long getMissCount() {
+    return _misses.get();
+  }
+
+  private static int stripe(Object key) {
+    if (key == null) {
+      return 0;
+    }
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return h & (VERSION_STRIPES - 1);
+  }
+
+  private void remove(Object key) {
+    CachedValue<V> removed = _cache.remove(key);
+    if (removed != null) {
+      _bytes -= removed._weight;
+    }
+  }
+
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+
+/**
+ * Streams the results of a scan in batches of the scan's caching size. When
+ * an executor is given the next batch is fetched in the background while the
+ * caller works through the current one.
+ */
+abstract class ScanIterator<T> implements CloseableIterator<T> {
+
+  private static final Result[] EMPTY = new Result[0];
+
+  private final HTableInterface _table;
+  private final ResultScanner _scanner;
+  private final ExecutorService _executor;
+  private final int _batchSize;
+  private Result[] _current = EMPTY;
+  private int _index;
+  private Future<Result[]> _next;
+  private Result _last;
+  private boolean _exhausted;
+  private boolean _closed;
+
+  ScanIterator(HTableInterface table, Scan scan, ExecutorService executor) throws IOException {
+    _table = table;
+    _executor = executor;
+    _batchSize = Math.max(1, scan.getCaching());
+    try {
+      _scanner = table.getScanner(scan);
+    } catch (IOException e) {
+      IOUtils.closeQuietly(table);
+      throw e;
+    }
+  }
+
+  protected abstract T toObject(Result result);
+
+  /**
+   * Called with the number of rows and the time taken by each round trip,
+   * possibly from the prefetching thread.
+   */
+  protected void fetched(int rows, long nanos) {
+
+  }
+
+  /**
+   * The result most recently returned by {@link #next()}.
+   */
+  protected Result lastResult() {
+    if (_last == null) {
+      throw new IllegalStateException();
+    }
+    return _last;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (_index >= _current.length) {
+      if (_exhausted) {
+        close();
+        return false;
+      }
+      try {
+        _current = nextBatch();
+      } catch (RuntimeException e) {
+        close();
+        throw e;
+      }
+      _index = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    _last = _current[_index];
+    _current[_index++] = null;
+    return toObject(_last);
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() {
+    if (_closed) {
+      return;
+    }
+    _closed = true;
+    _exhausted = true;
+    _current = EMPTY;
+    try {
+      if (_next != null) {
+        // the scanner must not be closed under a running fetch
+        await(_next);
+      }
+    } catch (RuntimeException e) {
+      // closing anyway
+    } finally {
+      _next = null;
+      _scanner.close();
+      IOUtils.closeQuietly(_table);
+    }
+  }
+
+  private Result[] nextBatch() {
+    Result[] batch;
+    if (_next != null) {
+      batch = await(_next);
+      _next = null;
+    } else {
+      batch = fetch();
+    }
+    if (batch.length < _batchSize) {
+      _exhausted = true;
+    } else if (_executor != null) {
+      _next = _executor.submit(new Callable<Result[]>() {
+        @Override
+        public Result[] call() throws Exception {
+          return fetch();
+        }
+      });
+    }
+    return batch;
+  }
+
+  private Result[] fetch() {
+    try {
+      long start = System.nanoTime();
+      Result[] results = _scanner.next(_batchSize);
+      fetched(results.length, System.nanoTime() - start);
+      return results;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static Result[] await(Future<Result[]> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+}
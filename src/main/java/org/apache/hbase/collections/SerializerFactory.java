@@ -16,102 +16,323 @@
  */
 package org.apache.hbase.collections;
 
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.MurmurHash;
 
+/**
+ * Encodes keys and values as a one byte type tag followed by the bytes of the
+ * {@link Codec} registered for the type, and lays out the rows of a map. Values
+ * are encoded straight into presized arrays and decoded in place from the
+ * cells of a {@link Result}.
+ */
 public class SerializerFactory<K, V> {
 
-  private static final byte[] SEP = Bytes.toBytes("|");
+  private static final byte SEP = '|';
+  private static final byte COMPRESSED = 9;
+  private static final MurmurHash HASH = (MurmurHash) MurmurHash.getInstance();
 
-  public byte[] toBytes(Object o) {
-    if (o == null) {
-      return HConstants.EMPTY_BYTE_ARRAY;
+  private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.BEST_SPEED);
+    }
+  };
+
+  private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+
+  private final boolean _orderedKeys;
+  private final int _saltBuckets;
+  private final Codec<?>[] _codecsByTag = new Codec<?>[256];
+  private final Map<Class<?>, Codec<?>> _valueCodecs = new ConcurrentHashMap<Class<?>, Codec<?>>();
+  private final Map<Class<?>, Codec<?>> _keyCodecs = new ConcurrentHashMap<Class<?>, Codec<?>>();
+  private volatile boolean _compactEncoding;
+  private volatile int _compressionThreshold = -1;
+
+  public SerializerFactory() {
+    this(false);
+  }
+
+  /**
+   * With ordered keys numbers are encoded so that the byte order of the rows
+   * matches the natural order of the keys, negative numbers included.
+   */
+  public SerializerFactory(boolean orderedKeys) {
+    this(orderedKeys, 0);
+  }
+
+  /**
+   * With salt buckets every row gets a bucket byte hashed from the key right
+   * after the map prefix, so sequential keys spread over the bucket ranges
+   * instead of all landing in the last region. Salted rows are not in key
+   * order and a map must always be opened with the same number of buckets, 0
+   * turns salting off.
+   */
+  public SerializerFactory(boolean orderedKeys, int saltBuckets) {
+    if (saltBuckets < 0 || saltBuckets > 256) {
+      throw new IllegalArgumentException("Salt buckets [" + saltBuckets + "] must be between 0 and 256.");
     }
+    _orderedKeys = orderedKeys;
+    _saltBuckets = saltBuckets;
+    register(Codecs.INT);
+    register(Codecs.LONG);
+    register(Codecs.FLOAT);
+    register(Codecs.DOUBLE);
+    register(Codecs.STRING);
+    register(Codecs.BYTES);
+    registerDecoder(Codecs.VARINT);
+    registerDecoder(Codecs.VARLONG);
+    registerDecoder(Codecs.ORDERED_INT);
+    registerDecoder(Codecs.ORDERED_LONG);
+    registerDecoder(Codecs.ORDERED_FLOAT);
+    registerDecoder(Codecs.ORDERED_DOUBLE);
+    if (orderedKeys) {
+      registerKeyCodec(Codecs.ORDERED_INT);
+      registerKeyCodec(Codecs.ORDERED_LONG);
+      registerKeyCodec(Codecs.ORDERED_FLOAT);
+      registerKeyCodec(Codecs.ORDERED_DOUBLE);
+    }
+  }
+
+  public boolean isOrderedKeys() {
+    return _orderedKeys;
+  }
+
+  public int getSaltBuckets() {
+    return _saltBuckets;
+  }
+
+  public boolean isCompactEncoding() {
+    return _compactEncoding;
+  }
 
-    byte[] buf;
-    if (o instanceof Integer) {
-      byte[] bs = Bytes.toBytes((Integer) o);
-      buf = new byte[bs.length + 1];
-      buf[0] = 1;
-      System.arraycopy(bs, 0, buf, 1, bs.length);
-      return buf;
+  /**
+   * Writes int and long values as zigzag varints. Values written either way
+   * are always readable, but a compare-and-set against a value written with
+   * the other encoding fails.
+   */
+  public void setCompactEncoding(boolean compactEncoding) {
+    _valueCodecs.put(Integer.class, compactEncoding ? Codecs.VARINT : Codecs.INT);
+    _valueCodecs.put(Long.class, compactEncoding ? Codecs.VARLONG : Codecs.LONG);
+    _compactEncoding = compactEncoding;
+  }
+
+  public int getCompressionThreshold() {
+    return _compressionThreshold;
+  }
+
+  /**
+   * Deflates encoded values longer than the given number of bytes when that
+   * makes them smaller, -1 turns compression off. Compressed values are always
+   * readable, but as with {@link #setCompactEncoding(boolean)} changing the
+   * threshold fails compare-and-sets against values written before.
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    _compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * Registers a codec for both keys and values of its type. User codecs must
+   * use a tag of at least {@link Codecs#MIN_USER_TAG}. Codecs have to be
+   * registered before the map is used.
+   */
+  public SerializerFactory<K, V> registerCodec(Codec<?> codec) {
+    if (codec.getTag() < Codecs.MIN_USER_TAG) {
+      throw new IllegalArgumentException("Tag [" + codec.getTag() + "] of [" + codec.getType()
+          + "] is reserved, use a tag of at least " + Codecs.MIN_USER_TAG + ".");
     }
+    register(codec);
+    return this;
+  }
 
-    if (o instanceof Long) {
-      byte[] bs = Bytes.toBytes((Long) o);
-      buf = new byte[bs.length + 1];
-      buf[0] = 2;
-      System.arraycopy(bs, 0, buf, 1, bs.length);
-      return buf;
+  private void register(Codec<?> codec) {
+    registerDecoder(codec);
+    _valueCodecs.put(codec.getType(), codec);
+    _keyCodecs.put(codec.getType(), codec);
+  }
+
+  private void registerKeyCodec(Codec<?> codec) {
+    registerDecoder(codec);
+    _keyCodecs.put(codec.getType(), codec);
+  }
+
+  private void registerDecoder(Codec<?> codec) {
+    int tag = codec.getTag() & 0xFF;
+    Codec<?> existing = _codecsByTag[tag];
+    if (existing != null && existing != codec) {
+      throw new IllegalArgumentException("Tag [" + tag + "] of [" + codec.getType() + "] already used by ["
+          + existing.getType() + "].");
     }
+    _codecsByTag[tag] = codec;
+  }
+
+  public byte[] toBytes(Object o) {
+    return compressIfLarge(encode(o, _valueCodecs));
+  }
 
-    if (o instanceof Float) {
-      byte[] bs = Bytes.toBytes((Float) o);
-      buf = new byte[bs.length + 1];
-      buf[0] = 3;
-      System.arraycopy(bs, 0, buf, 1, bs.length);
-      return buf;
+  /**
+   * Encodes a long value as {@link #toBytes(Object)} encodes the boxed one,
+   * without boxing it unless a user codec is registered for longs.
+   */
+  public byte[] toLongBytes(long value) {
+    Codec<?> codec = _valueCodecs.get(Long.class);
+    byte[] bs;
+    if (codec == Codecs.LONG) {
+      bs = new byte[1 + Bytes.SIZEOF_LONG];
+      Bytes.putLong(bs, 1, value);
+    } else if (codec == Codecs.VARLONG) {
+      long zigzag = Codecs.zigzag(value);
+      bs = new byte[1 + Codecs.getVarLongLength(zigzag)];
+      Codecs.writeVarLong(zigzag, bs, 1);
+    } else {
+      return toBytes((Object) value);
     }
+    bs[0] = codec.getTag();
+    return compressIfLarge(bs);
+  }
 
-    if (o instanceof Double) {
-      byte[] bs = Bytes.toBytes((Double) o);
-      buf = new byte[bs.length + 1];
-      buf[0] = 4;
-      System.arraycopy(bs, 0, buf, 1, bs.length);
-      return buf;
+  private byte[] compressIfLarge(byte[] bs) {
+    int threshold = _compressionThreshold;
+    if (threshold >= 0 && bs.length > threshold) {
+      return compress(bs);
     }
+    return bs;
+  }
+
+  /**
+   * Encodes keys, order preserving if the factory uses ordered keys. Strings
+   * already sort by their UTF-8 bytes so they are encoded as values are.
+   */
+  public byte[] toKeyBytes(Object o) {
+    return encode(o, _keyCodecs);
+  }
 
-    if (o instanceof String) {
-      byte[] bs = Bytes.toBytes((String) o);
-      buf = new byte[bs.length + 1];
-      buf[0] = 5;
-      System.arraycopy(bs, 0, buf, 1, bs.length);
-      return buf;
+  /**
+   * The number of bytes {@link #writeValue(Object, byte[], int)} writes.
+   * Values written into buffers are never compressed.
+   */
+  public int getValueLength(Object o) {
+    if (o == null) {
+      return 0;
     }
+    return 1 + getLength(codec(o, _valueCodecs), o);
+  }
 
-    throw new RuntimeException("Type [" + o + "] not supported.");
+  /**
+   * Writes the encoded value into the buffer, which may be reused across
+   * calls, and returns the offset after it.
+   */
+  public int writeValue(Object o, byte[] buf, int offset) {
+    if (o == null) {
+      return offset;
+    }
+    Codec<?> codec = codec(o, _valueCodecs);
+    int length = getLength(codec, o);
+    write(codec, o, buf, offset);
+    return offset + 1 + length;
   }
 
-  @SuppressWarnings("unchecked")
-  private V toObject(byte[] bs, int offset, int length) {
-    byte b = bs[offset];
-    int off = offset + 1;
-    switch (b) {
-    case 0:
+  public Object toObject(byte[] bs, int offset, int length) {
+    if (length == 0) {
+      return null;
+    }
+    int tag = bs[offset] & 0xFF;
+    if (tag == 0) {
       return null;
-    case 1:
-      return (V) ((Integer) Bytes.toInt(bs, off));
-    case 2:
-      return (V) ((Long) Bytes.toLong(bs, off));
-    case 3:
-      return (V) ((Float) Bytes.toFloat(bs, off));
-    case 4:
-      return (V) ((Double) Bytes.toDouble(bs, off));
-    case 5:
-      return (V) ((String) Bytes.toString(bs, off, bs.length - off));
-    default:
-      throw new RuntimeException("Type [" + b + "] not supported.");
     }
+    if (tag == COMPRESSED) {
+      byte[] bs2 = decompress(bs, offset + 1, length - 1);
+      return toObject(bs2, 0, bs2.length);
+    }
+    Codec<?> codec = _codecsByTag[tag];
+    if (codec == null) {
+      throw new RuntimeException("Type [" + tag + "] not supported.");
+    }
+    return codec.read(bs, offset + 1, length - 1);
+  }
+
+  /**
+   * Decodes a value written as a long without boxing it. Other numbers are
+   * converted, anything else is an error.
+   */
+  public long toLong(byte[] bs, int offset, int length) {
+    int tag = bs[offset] & 0xFF;
+    if (tag == Codecs.LONG.getTag()) {
+      return Bytes.toLong(bs, offset + 1);
+    } else if (tag == Codecs.VARLONG.getTag()) {
+      return Codecs.unzigzag(Codecs.readVarLong(bs, offset + 1));
+    } else if (tag == COMPRESSED) {
+      byte[] bs2 = decompress(bs, offset + 1, length - 1);
+      return toLong(bs2, 0, bs2.length);
+    }
+    Number number = toNumber(bs, offset, length);
+    if (number == null) {
+      throw new RuntimeException("Type [" + tag + "] is not a number.");
+    }
+    return number.longValue();
+  }
+
+  /**
+   * Decodes the value if it was written by one of the built-in number
+   * codecs, returns null for anything else including user codecs.
+   */
+  Number toNumber(byte[] bs, int offset, int length) {
+    if (length == 0) {
+      return null;
+    }
+    int tag = bs[offset] & 0xFF;
+    if (tag == COMPRESSED) {
+      byte[] bs2 = decompress(bs, offset + 1, length - 1);
+      return toNumber(bs2, 0, bs2.length);
+    }
+    if (tag >= Codecs.MIN_USER_TAG) {
+      return null;
+    }
+    Codec<?> codec = _codecsByTag[tag];
+    if (codec == null || !Number.class.isAssignableFrom(codec.getType())) {
+      return null;
+    }
+    return (Number) codec.read(bs, offset + 1, length - 1);
   }
 
-  @SuppressWarnings("unchecked")
   public K getKey(Result result, byte[] mapName, byte[] family, byte[] qualifier) {
-    byte[] row = result.getRow();
-    byte[] rowPrefix = getRowPrefix(mapName);
-    int offset = rowPrefix.length;
-    return (K) toObject(row, offset, row.length - offset);
+    KeyValue kv = result.raw()[0];
+    return getKey(kv.getBuffer(), kv.getRowOffset(), kv.getRowLength(), mapName);
+  }
+
+  @SuppressWarnings("unchecked")
+  public K getKey(byte[] row, int offset, int length, byte[] mapName) {
+    int prefixLength = mapName.length + (_saltBuckets == 0 ? 1 : 2);
+    return (K) toObject(row, offset + prefixLength, length - prefixLength);
   }
 
+  @SuppressWarnings("unchecked")
   public V getValue(Result result, byte[] mapName, byte[] family, byte[] qualifier) {
-    if (result.getRow() == null) {
+    if (result.isEmpty()) {
+      return null;
+    }
+    KeyValue kv = result.getColumnLatest(family, qualifier);
+    if (kv == null) {
       return null;
     }
-    byte[] value = result.getValue(family, qualifier);
-    return toObject(value, 0, value.length);
+    return (V) toObject(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
   }
 
   public Get getGet(K key, byte[] mapName, byte[] family, byte[] qualifier) {
@@ -123,16 +344,220 @@ public class SerializerFactory<K, V> {
   }
 
   public Delete getDelete(K key, byte[] mapName, byte[] family, byte[] qualifier) {
-    return new Delete(getRow(key, mapName)).deleteColumn(family, qualifier);
+    return new Delete(getRow(key, mapName)).deleteColumns(family, qualifier);
+  }
+
+  /**
+   * The row {@link #getRow(Object, byte[])} builds for the boxed long key,
+   * without boxing it unless a user codec is registered for longs.
+   */
+  @SuppressWarnings("unchecked")
+  public byte[] getLongRow(long key, byte[] mapName) {
+    Codec<?> codec = _keyCodecs.get(Long.class);
+    if (codec != Codecs.LONG && codec != Codecs.ORDERED_LONG) {
+      return getRow((K) Long.valueOf(key), mapName);
+    }
+    int offset = mapName.length + (_saltBuckets == 0 ? 1 : 2);
+    byte[] row = new byte[offset + 1 + Bytes.SIZEOF_LONG];
+    System.arraycopy(mapName, 0, row, 0, mapName.length);
+    row[mapName.length] = SEP;
+    row[offset] = codec.getTag();
+    Bytes.putLong(row, offset + 1, codec == Codecs.ORDERED_LONG ? key ^ Long.MIN_VALUE : key);
+    if (_saltBuckets != 0) {
+      int hash = HASH.hash(row, offset, 1 + Bytes.SIZEOF_LONG, 0);
+      row[mapName.length + 1] = (byte) ((hash & Integer.MAX_VALUE) % _saltBuckets);
+    }
+    return row;
+  }
+
+  public byte[] getRow(K key, byte[] mapName) {
+    if (key == null) {
+      return getRowPrefix(mapName);
+    }
+    Codec<?> codec = codec(key, _keyCodecs);
+    if (_saltBuckets == 0) {
+      byte[] row = new byte[mapName.length + 2 + getLength(codec, key)];
+      System.arraycopy(mapName, 0, row, 0, mapName.length);
+      row[mapName.length] = SEP;
+      write(codec, key, row, mapName.length + 1);
+      return row;
+    }
+    int length = 1 + getLength(codec, key);
+    byte[] row = new byte[mapName.length + 2 + length];
+    System.arraycopy(mapName, 0, row, 0, mapName.length);
+    row[mapName.length] = SEP;
+    write(codec, key, row, mapName.length + 2);
+    int hash = HASH.hash(row, mapName.length + 2, length, 0);
+    row[mapName.length + 1] = (byte) ((hash & Integer.MAX_VALUE) % _saltBuckets);
+    return row;
   }
 
-  private byte[] getRow(K key, byte[] mapName) {
-    byte[] bs = toBytes(key);
-    return Bytes.add(mapName, SEP, bs);
+  /**
+   * The start and exclusive stop row of each salt bucket of the map, a single
+   * range covering the whole map if it is not salted.
+   */
+  public byte[][][] getBucketRanges(byte[] mapName) {
+    if (_saltBuckets == 0) {
+      return new byte[][][] { { getRowPrefix(mapName), getRowPrefixStop(mapName) } };
+    }
+    byte[][][] ranges = new byte[_saltBuckets][][];
+    for (int bucket = 0; bucket < _saltBuckets; bucket++) {
+      byte[] start = Bytes.add(getRowPrefix(mapName), new byte[] { (byte) bucket });
+      ranges[bucket] = new byte[][] { start, stopRow(start) };
+    }
+    return ranges;
+  }
+
+  /**
+   * Split keys that give each salt bucket of the map its own region when the
+   * table is created.
+   */
+  public byte[][] getSaltSplitKeys(byte[] mapName) {
+    byte[][] splitKeys = new byte[Math.max(_saltBuckets - 1, 0)][];
+    for (int i = 0; i < splitKeys.length; i++) {
+      splitKeys[i] = Bytes.add(getRowPrefix(mapName), new byte[] { (byte) (i + 1) });
+    }
+    return splitKeys;
+  }
+
+  /**
+   * Whether keys encoded with the tag may hold a run of 0xFF bytes longer
+   * than a fixed width number. Such keys can sort between a row and a
+   * predecessor of it that is padded with 0xFF bytes. UTF-8 strings never
+   * contain 0xFF. Byte arrays and user codecs may contain it.
+   */
+  boolean mayContainPadding(byte tag) {
+    Codec<?> codec = _codecsByTag[tag & 0xFF];
+    return codec != null && codec != Codecs.STRING && codec != Codecs.INT && codec != Codecs.LONG
+        && codec != Codecs.FLOAT && codec != Codecs.DOUBLE && codec != Codecs.ORDERED_INT
+        && codec != Codecs.ORDERED_LONG && codec != Codecs.ORDERED_FLOAT && codec != Codecs.ORDERED_DOUBLE;
   }
 
   public byte[] getRowPrefix(byte[] mapName) {
-    return Bytes.add(mapName, SEP);
+    byte[] prefix = Arrays.copyOf(mapName, mapName.length + 1);
+    prefix[mapName.length] = SEP;
+    return prefix;
+  }
+
+  /**
+   * The first row after all the rows of the map, the exclusive stop row for
+   * scans over it.
+   */
+  public byte[] getRowPrefixStop(byte[] mapName) {
+    return stopRow(getRowPrefix(mapName));
+  }
+
+  static byte[] stopRow(byte[] prefix) {
+    for (int i = prefix.length - 1; i >= 0; i--) {
+      if (prefix[i] != (byte) 0xFF) {
+        byte[] stop = Arrays.copyOf(prefix, i + 1);
+        stop[i]++;
+        return stop;
+      }
+    }
+    return HConstants.EMPTY_END_ROW;
+  }
+
+  /**
+   * Stripe 0 is the map name itself so maps written before striping keep
+   * their count, the other stripes sort right after it and before any entry.
+   */
+  public byte[] getSizeRow(byte[] mapName, int stripe) {
+    if (stripe == 0) {
+      return mapName;
+    }
+    return Bytes.add(mapName, new byte[] { 0, (byte) stripe });
+  }
+
+  private byte[] encode(Object o, Map<Class<?>, Codec<?>> codecs) {
+    if (o == null) {
+      return HConstants.EMPTY_BYTE_ARRAY;
+    }
+    Codec<?> codec = codec(o, codecs);
+    byte[] buf = new byte[1 + getLength(codec, o)];
+    write(codec, o, buf, 0);
+    return buf;
+  }
+
+  /**
+   * The compressed tag, the varint length of the encoded value and the
+   * deflated value. The value is returned as is if deflating does not shrink
+   * it.
+   */
+  private static byte[] compress(byte[] bs) {
+    if (1 + Codecs.getVarLongLength(bs.length) >= bs.length) {
+      return bs;
+    }
+    Deflater deflater = DEFLATER.get();
+    deflater.reset();
+    deflater.setInput(bs);
+    deflater.finish();
+    byte[] buf = new byte[bs.length];
+    int length = Codecs.writeVarLong(bs.length, buf, 1);
+    while (!deflater.finished() && length < buf.length) {
+      length += deflater.deflate(buf, length, buf.length - length);
+    }
+    if (!deflater.finished()) {
+      return bs;
+    }
+    buf[0] = COMPRESSED;
+    return Arrays.copyOf(buf, length);
+  }
+
+  private static byte[] decompress(byte[] bs, int offset, int length) {
+    long rawLength = Codecs.readVarLong(bs, offset);
+    int headerLength = Codecs.getVarLongLength(rawLength);
+    byte[] raw = new byte[(int) rawLength];
+    Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(bs, offset + headerLength, length - headerLength);
+    try {
+      int read = 0;
+      while (read < raw.length) {
+        int n = inflater.inflate(raw, read, raw.length - read);
+        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new RuntimeException("Compressed value is truncated.");
+        }
+        read += n;
+      }
+    } catch (DataFormatException e) {
+      throw new RuntimeException(e);
+    }
+    return raw;
+  }
+
+  private Codec<?> codec(Object o, Map<Class<?>, Codec<?>> codecs) {
+    Class<?> type = o.getClass();
+    Codec<?> codec = codecs.get(type);
+    if (codec == null) {
+      codec = findCodec(type, codecs);
+    }
+    return codec;
+  }
+
+  /**
+   * Finds a codec registered for a super type or interface of the type and
+   * remembers it for the type.
+   */
+  private Codec<?> findCodec(Class<?> type, Map<Class<?>, Codec<?>> codecs) {
+    for (Codec<?> codec : codecs.values()) {
+      if (codec.getType().isAssignableFrom(type)) {
+        codecs.put(type, codec);
+        return codec;
+      }
+    }
+    throw new RuntimeException("Type [" + type.getName() + "] not supported.");
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> int getLength(Codec<T> codec, Object o) {
+    return codec.getLength((T) o);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> void write(Codec<T> codec, Object o, byte[] buf, int offset) {
+    buf[offset] = codec.getTag();
+    codec.write((T) o, buf, offset + 1);
   }
 
 }
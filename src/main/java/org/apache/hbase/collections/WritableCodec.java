@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Codec for Hadoop {@link Writable} types. Writables only know their length
+ * once serialized, so {@link #getLength(Writable)} and
+ * {@link #write(Writable, byte[], int)} each serialize the value. Nothing is
+ * kept between the calls, as the value may be changed in between.
+ */
+public class WritableCodec<T extends Writable> implements Codec<T> {
+
+  private final Class<T> _type;
+  private final byte _tag;
+
+  public WritableCodec(Class<T> type, int tag) {
+    if (tag < Codecs.MIN_USER_TAG || tag > Byte.MAX_VALUE) {
+      throw new IllegalArgumentException("Tag [" + tag + "] must be between " + Codecs.MIN_USER_TAG + " and "
+          + Byte.MAX_VALUE + ".");
+    }
+    _type = type;
+    _tag = (byte) tag;
+  }
+
+  @Override
+  public Class<T> getType() {
+    return _type;
+  }
+
+  @Override
+  public byte getTag() {
+    return _tag;
+  }
+
+  @Override
+  public int getLength(T value) {
+    return serialize(value).getLength();
+  }
+
+  @Override
+  public void write(T value, byte[] buf, int offset) {
+    DataOutputBuffer buffer = serialize(value);
+    System.arraycopy(buffer.getData(), 0, buf, offset, buffer.getLength());
+  }
+
+  @Override
+  public T read(byte[] buf, int offset, int length) {
+    T value = ReflectionUtils.newInstance(_type, null);
+    DataInputBuffer input = new DataInputBuffer();
+    input.reset(buf, offset, length);
+    try {
+      value.readFields(input);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return value;
+  }
+
+  private DataOutputBuffer serialize(T value) {
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    try {
+      value.write(buffer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return buffer;
+  }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Client side buffer of pending puts and removes for an {@link HBaseMap} in
+ * write-behind mode. Repeated writes to the same key are coalesced so only the
+ * last one is sent.
+ */
+class WriteBehindBuffer<K, V> {
+
+  private static final Log LOG = LogFactory.getLog(WriteBehindBuffer.class);
+
+  static final Object REMOVED = new Object();
+  static final Object NOT_BUFFERED = new Object();
+
+  private final HBaseMap<K, V> _map;
+  private final int _maxEntries;
+  private final Object _flushLock = new Object();
+  private final ScheduledExecutorService _flusher;
+  private Map<K, Object> _pending = new LinkedHashMap<K, Object>();
+  private Map<K, Object> _flushing = Collections.emptyMap();
+
+  WriteBehindBuffer(HBaseMap<K, V> map, int maxEntries, long flushInterval, TimeUnit unit) {
+    _map = map;
+    _maxEntries = maxEntries;
+    if (flushInterval > 0) {
+      _flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "hbase-map-write-behind");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      _flusher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            flush();
+          } catch (RuntimeException e) {
+            LOG.error("Background flush failed, pending writes will be retried.", e);
+          }
+        }
+      }, flushInterval, flushInterval, unit);
+    } else {
+      _flusher = null;
+    }
+  }
+
+  void put(K key, V value) {
+    buffer(key, value);
+  }
+
+  void remove(K key) {
+    buffer(key, REMOVED);
+  }
+
+  /**
+   * Returns the buffered value for the key, {@link #REMOVED} if the key has a
+   * pending remove or {@link #NOT_BUFFERED} if nothing is pending for it.
+   */
+  synchronized Object lookup(Object key) {
+    if (_pending.containsKey(key)) {
+      return _pending.get(key);
+    }
+    if (_flushing.containsKey(key)) {
+      return _flushing.get(key);
+    }
+    return NOT_BUFFERED;
+  }
+
+  synchronized int pendingCount() {
+    return _pending.size() + _flushing.size();
+  }
+
+  void flush() {
+    synchronized (_flushLock) {
+      synchronized (this) {
+        if (_pending.isEmpty()) {
+          return;
+        }
+        _flushing = _pending;
+        _pending = new LinkedHashMap<K, Object>();
+      }
+      boolean success = false;
+      try {
+        _map.writeBuffered(_flushing);
+        success = true;
+      } finally {
+        synchronized (this) {
+          if (!success) {
+            // keep the failed writes unless they were superseded meanwhile
+            for (Entry<K, Object> e : _pending.entrySet()) {
+              _flushing.put(e.getKey(), e.getValue());
+            }
+            _pending = _flushing;
+          }
+          _flushing = Collections.emptyMap();
+        }
+      }
+    }
+  }
+
+  void close() {
+    if (_flusher != null) {
+      _flusher.shutdown();
+    }
+    flush();
+  }
+
+  private void buffer(K key, Object value) {
+    boolean full;
+    synchronized (this) {
+      _pending.remove(key);
+      _pending.put(key, value);
+      full = _pending.size() >= _maxEntries;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+}
@@ -16,18 +16,50 @@
  */
 package org.apache.hbase.collections;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.io.Text;
+import org.apache.hbase.collections.MapMetrics.Operation;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -105,4 +137,958 @@ public class HBaseMapTest {
     assertEquals(0, map.size());
   }
 
+  @Test
+  public void testBatchOperations() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    map.setBatchSize(7);
+    map.put(0, -1);
+    Map<Integer, Integer> entries = new HashMap<Integer, Integer>();
+    for (int i = 0; i < 50; i++) {
+      entries.put(i, i);
+    }
+    map.putAll(entries);
+    assertEquals(50, map.size());
+    assertEquals((Integer) 0, map.get(0));
+
+    List<Integer> keys = new ArrayList<Integer>();
+    for (int i = 40; i < 60; i++) {
+      keys.add(i);
+    }
+    Map<Integer, Integer> values = map.getAll(keys);
+    assertEquals(10, values.size());
+    assertEquals((Integer) 45, values.get(45));
+    assertNull(values.get(55));
+
+    Map<Integer, Integer> removed = map.removeAll(keys);
+    assertEquals(values, removed);
+    assertEquals(40, map.size());
+    assertNull(map.get(45));
+  }
+
+  @Test
+  public void testWriteBehind() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    HBaseMap<Integer, Integer> other = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    map.enableWriteBehind(10, 0, TimeUnit.MILLISECONDS);
+    map.put(1, 1);
+    map.put(1, 2);
+    map.put(2, 2);
+    map.remove(2);
+    assertEquals((Integer) 2, map.get(1));
+    assertNull(map.get(2));
+    assertNull(other.get(1));
+
+    map.flush();
+    assertEquals((Integer) 2, other.get(1));
+    assertNull(other.get(2));
+    assertEquals(1, other.size());
+
+    for (int i = 0; i < 25; i++) {
+      map.put(i, i);
+    }
+    assertEquals((Integer) 15, other.get(15));
+    map.close();
+    assertEquals(25, other.size());
+    assertEquals((Integer) 24, other.get(24));
+  }
+
+  @Test
+  public void testNearCache() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    HBaseMap<Integer, Integer> other = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    map.enableNearCache(2, 1024, 1, TimeUnit.HOURS);
+    map.put(1, 1);
+    map.put(2, 2);
+    map.put(3, 3);
+    assertEquals((Integer) 1, map.get(1));
+    assertEquals((Integer) 1, map.get(1));
+    assertEquals(1, map.getNearCacheHitCount());
+    assertEquals(1, map.getNearCacheMissCount());
+
+    other.put(1, 100);
+    assertEquals((Integer) 1, map.get(1));
+    map.put(1, 10);
+    assertEquals((Integer) 10, map.get(1));
+
+    // 2 and 3 evict 1 from the two entry cache
+    map.get(2);
+    map.get(3);
+    other.put(1, 1000);
+    assertEquals((Integer) 1000, map.get(1));
+    assertEquals(2, map.getNearCacheHitCount());
+    assertEquals(5, map.getNearCacheMissCount());
+
+    // a read is only dropped when its own key is invalidated meanwhile
+    NearCache<Integer, Integer> cache = new NearCache<Integer, Integer>(10, 1024, 1, TimeUnit.HOURS);
+    long version = cache.version(1);
+    cache.invalidate(2);
+    cache.put(1, 1, 8, version);
+    assertEquals((Integer) 1, cache.get(1)._value);
+    version = cache.version(1);
+    cache.invalidate(1);
+    cache.put(1, 1, 8, version);
+    assertNull(cache.get(1));
+    cache.invalidate(null);
+    assertNull(map.remove(null));
+  }
+
+  @Test
+  public void testStripedSize() throws Exception {
+    Configuration configuration = _utility.getConfiguration();
+    final HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    map.setSizeStripes(4);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t * 10;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10; i++) {
+            map.put(offset + i, i);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40, map.size());
+
+    // the stripe count is stored with the size, other clients read all stripes
+    HBaseMap<Integer, Integer> other = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    other.setSizeStripes(2);
+    assertEquals(4, other.getSizeStripes());
+    other.setSizeCacheInterval(1, TimeUnit.HOURS);
+    assertEquals(40, other.size());
+    map.remove(0);
+    assertEquals(40, other.size());
+    other.remove(1);
+    assertEquals(39, other.size());
+    other.setSizeCacheInterval(0, TimeUnit.MILLISECONDS);
+    assertEquals(38, other.size());
+
+    HBaseMap<Integer, Integer> unstriped = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    assertEquals(38, unstriped.size());
+    assertEquals(4, unstriped.getSizeStripes());
+    new HBaseMap<Integer, Integer>(configuration, "t1", "test1").clear();
+    assertEquals(0, map.size());
+  }
+
+  @Test
+  public void testSetDelete() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    assertTrue(map.set(1, 1));
+    assertFalse(map.set(1, 2));
+    assertEquals(1, map.size());
+    assertEquals((Integer) 2, map.get(1));
+    assertTrue(map.delete(1));
+    assertFalse(map.delete(1));
+    assertEquals(0, map.size());
+    assertNull(map.get(1));
+  }
+
+  @Test
+  public void testEntryIterator() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    HBaseMap<Integer, Integer> next = new HBaseMap<Integer, Integer>(configuration, "t1", "test2");
+    map.setScannerCaching(7);
+    for (int i = 0; i < 50; i++) {
+      map.put(i, i);
+      next.put(i, -i);
+    }
+    CloseableIterator<Entry<Integer, Integer>> iterator = map.entryIterator();
+    int i = 0;
+    while (iterator.hasNext()) {
+      Entry<Integer, Integer> e = iterator.next();
+      assertEquals((Integer) i, e.getKey());
+      assertEquals((Integer) i, e.getValue());
+      i++;
+    }
+    assertEquals(50, i);
+    assertFalse(iterator.hasNext());
+
+    iterator = map.entryIterator();
+    Entry<Integer, Integer> first = iterator.next();
+    Entry<Integer, Integer> second = iterator.next();
+    iterator.remove();
+    iterator.close();
+    assertEquals((Integer) 0, first.getKey());
+    assertEquals((Integer) 1, second.getKey());
+    assertNull(map.get(1));
+    assertEquals(49, map.size());
+  }
+
+  @Test
+  public void testParallelScan() throws IOException {
+    byte[][] splitKeys = new byte[3][];
+    for (int i = 0; i < splitKeys.length; i++) {
+      splitKeys[i] = Bytes.add(Bytes.toBytes("test1|"), new byte[] { 1 }, Bytes.toBytes((i + 1) * 25));
+    }
+    HTableDescriptor descriptor = new HTableDescriptor("t2");
+    descriptor.addFamily(new HColumnDescriptor("map"));
+    _utility.getHBaseAdmin().createTable(descriptor, splitKeys);
+    try {
+      Configuration configuration = _utility.getConfiguration();
+      HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t2", "test1");
+      Map<Integer, Integer> entries = new HashMap<Integer, Integer>();
+      for (int i = 0; i < 100; i++) {
+        entries.put(i, i);
+      }
+      map.putAll(entries);
+      List<Pair<byte[], byte[]>> splits = map.getSplits();
+      assertEquals(4, splits.size());
+
+      final AtomicInteger count = new AtomicInteger();
+      map.parallelForEach(new HBaseMap.EntryVisitor<Integer, Integer>() {
+        @Override
+        public void visit(Integer key, Integer value) {
+          count.incrementAndGet();
+        }
+      });
+      assertEquals(100, count.get());
+
+      long sum = map.reduce(new HBaseMap.EntryReducer<Integer, Integer, Long>() {
+        @Override
+        public Long initial() {
+          return 0L;
+        }
+
+        @Override
+        public Long reduce(Long result, Integer key, Integer value) {
+          return result + value;
+        }
+
+        @Override
+        public Long combine(Long left, Long right) {
+          return left + right;
+        }
+      });
+      assertEquals(4950L, sum);
+    } finally {
+      _utility.deleteTable(Bytes.toBytes("t2"));
+    }
+  }
+
+  @Test
+  public void testCodecs() throws IOException {
+    String s = "a\u00e9\u20ac\ud83d\ude00\ud800z";
+    SerializerFactory<String, String> serializerFactory = new SerializerFactory<String, String>();
+    byte[] expected = Bytes.add(new byte[] { 5 }, Bytes.toBytes(s));
+    assertArrayEquals(expected, serializerFactory.toBytes(s));
+    byte[] buf = new byte[serializerFactory.getValueLength(s) + 2];
+    assertEquals(buf.length - 1, serializerFactory.writeValue(s, buf, 1));
+    // the unpaired surrogate decodes as '?', as it does for Bytes
+    assertEquals(Bytes.toString(Bytes.toBytes(s)), serializerFactory.toObject(buf, 1, buf.length - 2));
+
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<String, byte[]> bytes = new HBaseMap<String, byte[]>(configuration, "t1", "test1");
+    bytes.put(s, new byte[] { 1, 2, 3 });
+    assertArrayEquals(new byte[] { 1, 2, 3 }, bytes.get(s));
+
+    SerializerFactory<Text, Text> textFactory = new SerializerFactory<Text, Text>();
+    textFactory.registerCodec(new WritableCodec<Text>(Text.class, 32));
+    // a writable changed after its length was taken is encoded as it is now
+    Text mutable = new Text("short");
+    textFactory.getValueLength(mutable);
+    mutable.set("a longer value");
+    byte[] encoded = textFactory.toBytes(mutable);
+    assertEquals(mutable, textFactory.toObject(encoded, 0, encoded.length));
+    HBaseMap<Text, Text> texts = new HBaseMap<Text, Text>(HTableFactory.instance(configuration), Bytes.toBytes("t1"),
+        Bytes.toBytes("map"), Bytes.toBytes("test2"), HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY,
+        textFactory);
+    texts.put(new Text("k"), new Text("v"));
+    assertEquals(new Text("v"), texts.get(new Text("k")));
+    CloseableIterator<Text> keys = texts.keyIterator();
+    try {
+      assertEquals(new Text("k"), keys.next());
+    } finally {
+      keys.close();
+    }
+  }
+
+  @Test
+  public void testCompactEncoding() throws IOException {
+    SerializerFactory<String, Object> serializerFactory = new SerializerFactory<String, Object>();
+    serializerFactory.setCompactEncoding(true);
+    assertEquals(2, serializerFactory.toBytes(63).length);
+    assertEquals(2, serializerFactory.toBytes(-64L).length);
+    assertEquals(11, serializerFactory.toBytes(Long.MIN_VALUE).length);
+    for (long l : new long[] { 0, 1, -1, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE }) {
+      byte[] bs = serializerFactory.toBytes(l);
+      assertEquals(l, serializerFactory.toObject(bs, 0, bs.length));
+      bs = serializerFactory.toBytes((int) l);
+      assertEquals((int) l, serializerFactory.toObject(bs, 0, bs.length));
+    }
+
+    HBaseMap<String, Object> map = new HBaseMap<String, Object>(_utility.getConfiguration(), "t1", "test1");
+    map.put("fixed", 5);
+    map.setCompactEncoding(true);
+    map.setCompressionThreshold(64);
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      builder.append("compressible ");
+    }
+    String large = builder.toString();
+    assertTrue(map.getSerializerFactory().toBytes(large).length < large.length() / 4);
+    map.put("large", large);
+    map.put("small", "abc");
+    map.put("varint", 7);
+    assertEquals(large, map.get("large"));
+    assertEquals("abc", map.get("small"));
+    assertEquals(7, map.get("varint"));
+    assertEquals(5, map.get("fixed"));
+    assertTrue(map.replace("large", large, "x"));
+    assertEquals("x", map.get("large"));
+  }
+
+  @Test
+  public void testSaltedLayout() throws IOException {
+    SerializerFactory<Long, Long> serializerFactory = new SerializerFactory<Long, Long>(false, 4);
+    HTableDescriptor descriptor = new HTableDescriptor("t2");
+    descriptor.addFamily(new HColumnDescriptor("map"));
+    _utility.getHBaseAdmin().createTable(descriptor, serializerFactory.getSaltSplitKeys(Bytes.toBytes("test1")));
+    try {
+      HBaseMap<Long, Long> map = new HBaseMap<Long, Long>(_utility.getConfiguration(), "t2", "test1", 4);
+      Set<Integer> buckets = new HashSet<Integer>();
+      for (long i = 0; i < 100; i++) {
+        map.put(i, i);
+        buckets.add((int) map.getRow(i)[6]);
+      }
+      assertEquals(4, buckets.size());
+      assertEquals(4, map.getSplits().size());
+      assertEquals(100, map.size());
+      assertEquals((Long) 42L, map.get(42L));
+      Set<Long> keys = new HashSet<Long>();
+      for (Entry<Long, Long> e : map.entrySet()) {
+        assertEquals(e.getKey(), e.getValue());
+        keys.add(e.getKey());
+      }
+      assertEquals(100, keys.size());
+      assertEquals((Long) 42L, map.remove(42L));
+      assertNull(map.get(42L));
+      assertEquals(99, map.size());
+    } finally {
+      _utility.deleteTable(Bytes.toBytes("t2"));
+    }
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    HBaseMap<String, String> map = new HBaseMap<String, String>(_utility.getConfiguration(), "t1", "test1");
+    map.put("a", "1");
+    map.put("a", "2");
+    map.get("a");
+    map.get("b");
+    for (Entry<String, String> e : map.entrySet()) {
+      assertEquals("a", e.getKey());
+    }
+    MapMetrics metrics = map.getMetrics();
+    assertEquals(2, metrics.getCount(Operation.PUT));
+    assertEquals(4, metrics.getRpcCount(Operation.PUT));
+    assertEquals(0, metrics.getCasRetries(Operation.PUT));
+    assertEquals(1, metrics.getCount(Operation.UPDATE_SIZE));
+    assertEquals(2, metrics.getCount(Operation.GET));
+    assertEquals(1, metrics.getScannerRows());
+    assertTrue(metrics.getBytesSerialized() > 0);
+    assertTrue(metrics.getBytesDeserialized() > 0);
+    assertTrue(metrics.getLatencyPercentile(Operation.PUT, 0.99, TimeUnit.NANOSECONDS) > 0);
+
+    ObjectName name = map.registerMBean();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertEquals(2L, server.getAttribute(name, "PutCount"));
+    assertEquals(4L, server.getAttribute(name, "PutRpcs"));
+    assertEquals(2L, server.getAttribute(name, "GetCount"));
+    server.invoke(name, "reset", null, null);
+    assertEquals(0L, server.getAttribute(name, "PutCount"));
+    map.close();
+    assertFalse(server.isRegistered(name));
+  }
+
+  @Test
+  public void testBoundedConcurrency() throws Exception {
+    Configuration configuration = new Configuration(_utility.getConfiguration());
+    configuration.setInt(HTableFactory.MAX_CONCURRENCY, 1);
+    configuration.setBoolean(HTableFactory.REGION_PREFETCH, true);
+    try {
+      // copies of a configuration share the factory of their cluster
+      assertSame(HTableFactory.instance(configuration), HTableFactory.instance(new Configuration(configuration)));
+      final HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 4; t++) {
+        final int offset = t * 25;
+        threads.add(new Thread() {
+          @Override
+          public void run() {
+            for (int i = offset; i < offset + 25; i++) {
+              // put takes a second table for the size update while it holds one
+              map.put(i, i);
+            }
+          }
+        });
+      }
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals(100, map.size());
+      assertEquals((Integer) 42, map.get(42));
+
+      // scans that stop early must give the only permit back
+      assertTrue(map.containsValue(42));
+      assertTrue(map.values().contains(42));
+      assertTrue(map.entrySet().contains(new AbstractMap.SimpleImmutableEntry<Integer, Integer>(42, 42)));
+      Map<Integer, Integer> other = new HashMap<Integer, Integer>();
+      for (int i = 0; i < 100; i++) {
+        other.put(i, -i);
+      }
+      assertFalse(map.equals(other));
+      assertTrue(map.entrySet().remove(new AbstractMap.SimpleImmutableEntry<Integer, Integer>(99, 99)));
+      assertTrue(map.keySet().removeAll(Arrays.asList(98)));
+      assertTrue(map.values().remove(97));
+      assertTrue(map.values().removeAll(Arrays.asList(96)));
+      List<Integer> retained = new ArrayList<Integer>();
+      for (int i = 0; i < 95; i++) {
+        retained.add(i);
+      }
+      assertTrue(map.keySet().retainAll(retained));
+      assertFalse(map.entrySet().retainAll(new HashMap<Integer, Integer>(map).entrySet()));
+      assertEquals(95, map.size());
+      // abandoned iterators hold no permit
+      for (int i = 0; i < 3; i++) {
+        map.entrySet().iterator().next();
+        for (Integer key : map.keySet()) {
+          if (key != null) {
+            break;
+          }
+        }
+      }
+      Thread reader = new Thread() {
+        @Override
+        public void run() {
+          map.get(42);
+        }
+      };
+      reader.start();
+      reader.join(30000);
+      assertFalse(reader.isAlive());
+    } finally {
+      HTableFactory.release(configuration);
+    }
+  }
+
+  @Test
+  public void testCasRetryPolicy() {
+    final HTableFactory tableFactory = HTableFactory.instance(_utility.getConfiguration());
+    // every compare-and-set loses, as if another client kept writing the key
+    HTableFactory contended = new HTableFactory() {
+      @Override
+      public HTableInterface getInstance(byte[] table) {
+        final HTableInterface delegate = tableFactory.getInstance(table);
+        return (HTableInterface) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { HTableInterface.class }, new InvocationHandler() {
+              @Override
+              public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("checkAndPut")) {
+                  return false;
+                }
+                try {
+                  return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                  throw e.getCause();
+                }
+              }
+            });
+      }
+    };
+    HBaseMap<String, String> map = new HBaseMap<String, String>(contended, Bytes.toBytes("t1"), Bytes.toBytes("map"),
+        Bytes.toBytes("test1"), HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY,
+        new SerializerFactory<String, String>());
+    map.setCasRetryPolicy(new CasRetryPolicy(3, 1, 4, 0, TimeUnit.MILLISECONDS));
+    try {
+      map.put("a", "1");
+      fail();
+    } catch (CasContentionException e) {
+      assertEquals(3, e.getAttempts());
+    }
+    // the attempt that gives up is not a retry
+    assertEquals(2, map.getMetrics().getCasRetries(Operation.PUT));
+    assertEquals(1, map.getMetrics().getCasFailures(Operation.PUT));
+
+    map.setCasRetryPolicy(new CasRetryPolicy(Integer.MAX_VALUE, 5, 5, 50, TimeUnit.MILLISECONDS));
+    try {
+      map.put("a", "1");
+      fail();
+    } catch (CasContentionException e) {
+      assertTrue(e.getAttempts() > 1);
+      assertTrue(e.getElapsedNanos() < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+  }
+
+  @Test
+  public void testEndpoint() throws IOException {
+    HTableDescriptor descriptor = new HTableDescriptor("t2");
+    descriptor.addFamily(new HColumnDescriptor("map"));
+    descriptor.addCoprocessor(MapEndpoint.class.getName());
+    // the size row of test1 ends up in another region than its entries
+    _utility.getHBaseAdmin().createTable(descriptor, new byte[][] { Bytes.toBytes("test1|") });
+    try {
+      Configuration configuration = _utility.getConfiguration();
+      for (String mapName : new String[] { "a", "test1" }) {
+        HBaseMap<String, String> map = new HBaseMap<String, String>(configuration, "t2", mapName);
+        map.setUseEndpoint(true);
+        assertNull(map.put("k1", "v1"));
+        assertEquals("v1", map.put("k1", "v2"));
+        assertEquals("v2", map.putIfAbsent("k1", "v3"));
+        assertNull(map.putIfAbsent("k2", "v3"));
+        assertNull(map.replace("k3", "v4"));
+        assertFalse(map.containsKey("k3"));
+        assertEquals("v3", map.replace("k2", "v4"));
+        assertEquals(2, map.size());
+        assertNull(map.remove("k3"));
+        assertEquals("v4", map.remove("k2"));
+        assertEquals(1, map.size());
+        assertEquals("v2", map.get("k1"));
+        assertEquals(2, map.getMetrics().getRpcCount(Operation.PUT));
+        assertEquals(0, map.getMetrics().getRpcCount(Operation.UPDATE_SIZE));
+      }
+    } finally {
+      _utility.deleteTable(Bytes.toBytes("t2"));
+    }
+  }
+
+  @Test
+  public void testAggregate() throws IOException {
+    HTableDescriptor descriptor = new HTableDescriptor("t2");
+    descriptor.addFamily(new HColumnDescriptor("map"));
+    descriptor.addCoprocessor(MapEndpoint.class.getName());
+    byte[] prefix = Bytes.toBytes("test1|");
+    byte[][] splitKeys = { prefix, Bytes.add(prefix, new byte[] { 1 }, Bytes.toBytes(50)) };
+    _utility.getHBaseAdmin().createTable(descriptor, splitKeys);
+    try {
+      Configuration configuration = _utility.getConfiguration();
+      HBaseMap<Integer, Object> map = new HBaseMap<Integer, Object>(configuration, "t2", "test1");
+      map.setSizeStripes(2);
+      Map<Integer, Object> entries = new HashMap<Integer, Object>();
+      for (int i = 0; i < 100; i++) {
+        entries.put(i, i % 2 == 0 ? (Object) i : (Object) (long) -i);
+      }
+      entries.put(100, "text");
+      map.putAll(entries);
+      new HBaseMap<Integer, Object>(configuration, "t2", "other").put(1, 1000);
+
+      assertEquals(101, map.count());
+      MapAggregate aggregate = map.aggregate();
+      assertEquals(101, aggregate.getCount());
+      assertEquals(100, aggregate.getNumericCount());
+      assertEquals(-50.0, aggregate.getSum(), 0.0);
+      assertEquals(-99.0, aggregate.getMin(), 0.0);
+      assertEquals(98.0, aggregate.getMax(), 0.0);
+      assertEquals(-0.5, aggregate.getAverage(), 0.0);
+
+      map.updateSize(7);
+      assertEquals(108, map.sizeActual());
+      assertEquals(101, map.repairSize());
+      assertEquals(101, map.sizeActual());
+      assertEquals((Object) (-1L), map.remove(1));
+      assertEquals(100, map.sizeActual());
+    } finally {
+      _utility.deleteTable(Bytes.toBytes("t2"));
+    }
+  }
+
+  @Test
+  public void testKeyOnly() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, String> map = new HBaseMap<Integer, String>(configuration, "t1", "test1");
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      builder.append('x');
+    }
+    for (int i = 0; i < 20; i++) {
+      map.put(i, builder.toString());
+    }
+    map.getMetrics().reset();
+    assertTrue(map.containsKey(5));
+    assertFalse(map.containsKey(50));
+    Set<Integer> keys = new HashSet<Integer>(map.keySet());
+    assertEquals(20, keys.size());
+    assertTrue(map.keySet().contains(19));
+    assertEquals(0, map.getMetrics().getBytesDeserialized());
+    assertEquals(3, map.getMetrics().getCount(Operation.CONTAINS_KEY));
+
+    assertTrue(map.keySet().remove(5));
+    assertFalse(map.containsKey(5));
+    assertEquals(19, map.size());
+
+    map.enableWriteBehind(100, 0, TimeUnit.SECONDS);
+    map.put(50, "buffered");
+    map.remove(6);
+    assertTrue(map.containsKey(50));
+    assertFalse(map.containsKey(6));
+    map.close();
+  }
+
+  @Test
+  public void testCounterMap() throws Exception {
+    Configuration configuration = _utility.getConfiguration();
+    final HBaseCounterMap<String> counters = new HBaseCounterMap<String>(configuration, "t1", "counters");
+    assertEquals(5, counters.increment("a", 5));
+    assertEquals(3, counters.increment("a", -2));
+    assertEquals((Long) 3L, counters.put("a", 10L));
+    assertEquals(11, counters.increment("a", 1));
+    assertNull(counters.putIfAbsent("b", 7L));
+    assertEquals(8, counters.increment("b", 1));
+    assertEquals(2, counters.size());
+    assertEquals(4, counters.getMetrics().getRpcCount(Operation.INCREMENT));
+
+    counters.enableNearCache(100, 1 << 20, 1, TimeUnit.HOURS);
+    assertEquals((Long) 11L, counters.get("a"));
+    counters.enableCoalescing(1000, 0, TimeUnit.SECONDS);
+    counters.add("a", 1);
+    counters.add("c", 2);
+    assertEquals((Long) 12L, counters.get("a"));
+    assertEquals((Long) 2L, counters.get("c"));
+    assertTrue(counters.containsKey("c"));
+    // the flushed deltas replace the cached values
+    counters.flush();
+    assertEquals((Long) 12L, counters.get("a"));
+    assertEquals((Long) 2L, counters.get("c"));
+    assertEquals(3, counters.size());
+
+    final int threads = 4;
+    final int adds = 5000;
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < adds; i++) {
+            counters.add("k" + (i % 10), 1);
+          }
+        }
+      });
+      thread.start();
+      workers.add(thread);
+    }
+    for (Thread thread : workers) {
+      thread.join();
+    }
+    long rpcs = counters.getMetrics().getRpcCount(Operation.INCREMENT);
+    counters.flush();
+    assertEquals(rpcs + 1, counters.getMetrics().getRpcCount(Operation.INCREMENT));
+    counters.disableCoalescing();
+    for (int i = 0; i < 10; i++) {
+      assertEquals((Long) (long) (threads * adds / 10), counters.get("k" + i));
+    }
+    assertEquals(13, counters.size());
+    assertEquals((Long) 12L, counters.remove("a"));
+    assertEquals(12, counters.size());
+    counters.close();
+  }
+
+  @Test
+  public void testClear() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    HBaseMap<Integer, Integer> other = new HBaseMap<Integer, Integer>(configuration, "t1", "test2");
+    map.setBatchSize(16);
+    map.setSizeStripes(4);
+    Map<Integer, Integer> entries = new HashMap<Integer, Integer>();
+    for (int i = 0; i < 100; i++) {
+      entries.put(i, i);
+    }
+    map.putAll(entries);
+    other.put(1, 1);
+    map.enableWriteBehind(100, 0, TimeUnit.SECONDS);
+    map.put(1000, 1000);
+    map.clear();
+    assertEquals(0, map.size());
+    assertTrue(map.isEmpty());
+    assertNull(map.get(1000));
+    // 1 scan and 7 delete batches
+    assertEquals(8, map.getMetrics().getRpcCount(Operation.CLEAR));
+    assertEquals((Integer) 1, other.get(1));
+    assertEquals(1, other.size());
+    assertNull(map.put(5, 5));
+    assertEquals(1, map.size());
+    map.close();
+  }
+
+  @Test
+  public void testBulkLoad() throws IOException {
+    byte[] prefix = Bytes.toBytes("test1|");
+    byte[][] splitKeys = { Bytes.add(prefix, new byte[] { 1 }, Bytes.toBytes(300)),
+        Bytes.add(prefix, new byte[] { 1 }, Bytes.toBytes(700)) };
+    HTableDescriptor descriptor = new HTableDescriptor("t2");
+    descriptor.addFamily(new HColumnDescriptor("map"));
+    _utility.getHBaseAdmin().createTable(descriptor, splitKeys);
+    try {
+      Configuration configuration = _utility.getConfiguration();
+      HBaseMap<Integer, String> map = new HBaseMap<Integer, String>(configuration, "t2", "test1");
+      map.setSizeStripes(2);
+      HBaseMapLoader<Integer, String> loader = new HBaseMapLoader<Integer, String>(map, configuration);
+      try {
+        loader.setMaxBufferedEntries(150);
+        // unsorted, with every tenth key added again later
+        for (int i = 999; i >= 0; i--) {
+          loader.add((i * 7) % 1000, "v" + i);
+        }
+        for (int i = 0; i < 1000; i += 10) {
+          loader.add(i, "again" + i);
+        }
+        assertEquals(1000, loader.load());
+      } finally {
+        loader.close();
+      }
+      assertEquals(1000, map.size());
+      assertEquals("again10", map.get(10));
+      assertEquals("v1", map.get(7));
+      int count = 0;
+      Integer last = null;
+      for (Entry<Integer, String> e : map.entrySet()) {
+        if (last != null) {
+          assertTrue(e.getKey() > last);
+        }
+        last = e.getKey();
+        count++;
+      }
+      assertEquals(1000, count);
+      assertEquals("v1", map.put(7, "updated"));
+      assertEquals(1000, map.size());
+    } finally {
+      _utility.deleteTable(Bytes.toBytes("t2"));
+    }
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    HBaseMap<Integer, Integer> other = new HBaseMap<Integer, Integer>(configuration, "t1", "test2");
+    for (int i = 0; i < 100; i++) {
+      map.put(i, i);
+    }
+    other.put(1000, 1000);
+    Thread.sleep(10);
+    File file = File.createTempFile("snapshot", ".map");
+    file.delete();
+    HBaseMapSnapshot<Integer, Integer> snapshot = new HBaseMapSnapshot<Integer, Integer>(map, file);
+    try {
+      assertEquals(100, snapshot.size());
+      assertEquals((Integer) 5, snapshot.get(5));
+      assertTrue(snapshot.containsKey(99));
+      assertFalse(snapshot.containsKey(1000));
+      assertNull(snapshot.get(1000));
+      int expected = 0;
+      for (Entry<Integer, Integer> e : snapshot.entrySet()) {
+        assertEquals((Integer) expected, e.getKey());
+        assertEquals((Integer) expected, e.getValue());
+        expected++;
+      }
+      assertEquals(100, expected);
+
+      snapshot.setRefreshOverlap(0, TimeUnit.SECONDS);
+      Thread.sleep(10);
+      map.put(5, 50);
+      map.remove(7);
+      map.put(200, 200);
+      assertEquals((Integer) 5, snapshot.get(5));
+      // only the two written cells are fetched, the deletion comes from the keys
+      assertEquals(2, snapshot.refresh());
+      assertEquals(100, snapshot.size());
+      assertEquals((Integer) 50, snapshot.get(5));
+      assertNull(snapshot.get(7));
+      assertEquals((Integer) 200, snapshot.get(200));
+      assertEquals(100, snapshot.rebuild());
+      assertEquals((Integer) 50, snapshot.get(5));
+    } finally {
+      snapshot.close();
+    }
+    try {
+      snapshot.get(5);
+      fail();
+    } catch (IllegalStateException e) {
+      // closed
+    }
+    snapshot = new HBaseMapSnapshot<Integer, Integer>(map, file);
+    try {
+      assertEquals(100, snapshot.size());
+      assertEquals((Integer) 200, snapshot.get(200));
+    } finally {
+      snapshot.close();
+      file.delete();
+    }
+    map.close();
+    other.close();
+  }
+
+  @Test
+  public void testPrimitiveMaps() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseLongLongMap map = new HBaseLongLongMap(configuration, "t1", "test1");
+    HBaseMap<Long, Long> boxed = new HBaseMap<Long, Long>(configuration, "t1", "test1");
+    map.setNoEntryValue(-1);
+    assertEquals(-1, map.get(1));
+    assertEquals(-1, map.put(1, 10));
+    assertEquals(10, map.put(1, 11));
+    assertTrue(map.set(2, 20));
+    assertFalse(map.set(2, 21));
+    assertTrue(map.containsKey(2));
+    assertFalse(map.containsKey(3));
+    assertEquals(2, map.size());
+    // the same rows and cells as boxed longs
+    assertEquals((Long) 11L, boxed.get(1L));
+    boxed.put(3L, 30L);
+    assertEquals(30, map.get(3));
+    assertEquals(30, map.remove(3));
+    assertEquals(-1, map.remove(3));
+    assertTrue(map.delete(2));
+    assertFalse(map.delete(2));
+    assertEquals(1, boxed.size());
+    map.setCompactEncoding(true);
+    map.put(4, 40);
+    assertEquals((Long) 40L, boxed.get(4L));
+    map.enableNearCache(100, 1 << 20, 60, TimeUnit.SECONDS);
+    assertEquals(40, map.get(4));
+    assertEquals(40, map.put(4, 41));
+    assertEquals(41, map.get(4));
+    map.close();
+    boxed.close();
+
+    HBaseLongObjectMap<String> objects = new HBaseLongObjectMap<String>(configuration, "t1", "test2", 4);
+    assertNull(objects.put(-5, "a"));
+    assertEquals("a", objects.get(-5));
+    assertEquals("a", objects.get((Object) (-5L)));
+    assertEquals("a", objects.remove(-5));
+    assertFalse(objects.containsKey(-5));
+    assertEquals(0, objects.size());
+    objects.close();
+
+    assertPrimitiveEncoding(new SerializerFactory<Long, Object>());
+    assertPrimitiveEncoding(new SerializerFactory<Long, Object>(true));
+    assertPrimitiveEncoding(new SerializerFactory<Long, Object>(false, 8));
+  }
+
+  private void assertPrimitiveEncoding(SerializerFactory<Long, Object> factory) {
+    byte[] mapName = Bytes.toBytes("m");
+    for (long key : new long[] { Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE }) {
+      assertArrayEquals(factory.getRow((Long) key, mapName), factory.getLongRow(key, mapName));
+      assertArrayEquals(factory.toBytes((Object) key), factory.toLongBytes(key));
+      byte[] bs = factory.toLongBytes(key);
+      assertEquals(key, factory.toLong(bs, 0, bs.length));
+    }
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    HBaseAsyncMap<Integer, Integer> async = new HBaseAsyncMap<Integer, Integer>(map, 2, 50);
+    List<Future<Integer>> puts = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 100; i++) {
+      puts.add(async.putAsync(i, i * 2));
+    }
+    for (Future<Integer> put : puts) {
+      assertNull(put.get());
+    }
+    assertEquals(100, map.size());
+    List<Future<Integer>> gets = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 200; i++) {
+      gets.add(async.getAsync(i));
+    }
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i < 100 ? (Integer) (i * 2) : null, gets.get(i).get());
+    }
+    // the queued gets went out as multi-gets
+    assertTrue(map.getMetrics().getRpcCount(Operation.GET_ALL) < 200);
+    assertEquals(0, map.getMetrics().getRpcCount(Operation.GET));
+    assertTrue(async.containsKeyAsync(5).get());
+    assertFalse(async.containsKeyAsync(500).get());
+    assertEquals((Integer) 10, async.removeAsync(5).get());
+    assertFalse(async.deleteAsync(5).get());
+    assertTrue(async.setAsync(5, 5).get());
+    assertEquals((Integer) 5, async.putIfAbsentAsync(5, 6).get());
+    assertEquals(3, async.getAllAsync(Arrays.asList(1, 2, 3, 1000)).get().size());
+    async.close();
+    assertTrue(async.awaitTermination(10, TimeUnit.SECONDS));
+    map.close();
+  }
+
+  @Test
+  public void testEntriesModifiedSince() throws Exception {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseMap<Integer, Integer> map = new HBaseMap<Integer, Integer>(configuration, "t1", "test1");
+    map.setTombstoneQualifier(Bytes.toBytes("t"));
+    for (int i = 0; i < 10; i++) {
+      map.put(i, i);
+    }
+    Thread.sleep(5);
+    MapChanges<Integer, Integer> changes = map.entriesModifiedSince(0);
+    Map<Integer, MapChange<Integer, Integer>> changed = drain(changes);
+    assertEquals(10, changed.size());
+    assertEquals((Integer) 3, changed.get(3).getValue());
+    long watermark = changes.getWatermark();
+
+    Thread.sleep(5);
+    map.put(3, 30);
+    map.remove(4);
+    map.delete(5);
+    map.put(7, 70);
+    map.remove(7);
+    map.putAll(Collections.singletonMap(8, 80));
+    // cells of the current millisecond are left for the next call
+    Thread.sleep(5);
+    changes = map.entriesModifiedSince(watermark);
+    changed = drain(changes);
+    assertEquals(5, changed.size());
+    assertEquals((Integer) 30, changed.get(3).getValue());
+    assertTrue(changed.get(4).isDeleted());
+    assertTrue(changed.get(5).isDeleted());
+    assertTrue(changed.get(7).isDeleted());
+    assertEquals((Integer) 80, changed.get(8).getValue());
+    watermark = changes.getWatermark();
+
+    Thread.sleep(5);
+    map.put(4, 40);
+    map.removeAll(Arrays.asList(8, 9));
+    Thread.sleep(5);
+    changed = drain(map.entriesModifiedSince(watermark));
+    assertEquals(3, changed.size());
+    assertFalse(changed.get(4).isDeleted());
+    assertEquals((Integer) 40, changed.get(4).getValue());
+    assertTrue(changed.get(8).isDeleted());
+    assertTrue(changed.get(9).isDeleted());
+
+    // rows holding only a tombstone are not entries
+    assertEquals(6, map.size());
+    Set<Integer> entries = new HashSet<Integer>(Arrays.asList(0, 1, 2, 3, 4, 6));
+    assertEquals(entries, new HashSet<Integer>(map.keySet()));
+    assertEquals(entries, new HashMap<Integer, Integer>(map).keySet());
+    assertEquals(6, map.sizeActual());
+    assertFalse(map.containsKey(5));
+    assertEquals(5, map.purgeTombstones(System.currentTimeMillis() + 1));
+    assertEquals(1, map.getMetrics().getCount(Operation.PURGE_TOMBSTONES));
+    assertEquals(0, map.getMetrics().getCount(Operation.CLEAR));
+    assertEquals(6, drain(map.entriesModifiedSince(0)).size());
+    map.close();
+  }
+
+  private static Map<Integer, MapChange<Integer, Integer>> drain(MapChanges<Integer, Integer> changes) {
+    Map<Integer, MapChange<Integer, Integer>> changed = new HashMap<Integer, MapChange<Integer, Integer>>();
+    while (changes.hasNext()) {
+      MapChange<Integer, Integer> change = changes.next();
+      assertNull(changed.put(change.getKey(), change));
+    }
+    return changed;
+  }
+
 }
@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HBaseNavigableMapTest {
+
+  private static HBaseTestingUtility _utility;
+
+  @BeforeClass
+  public static void setupOnce() throws Exception {
+    _utility = new HBaseTestingUtility();
+    _utility.startMiniCluster();
+  }
+
+  @AfterClass
+  public static void shutdown() throws Exception {
+    _utility.shutdownMiniCluster();
+  }
+
+  @Before
+  public void setup() throws IOException {
+    SerializerFactory<Integer, Integer> serializerFactory = new SerializerFactory<Integer, Integer>(true);
+    byte[][] splitKeys = new byte[][] { serializerFactory.getRow(-5, Bytes.toBytes("test1")),
+        serializerFactory.getRow(5, Bytes.toBytes("test1")) };
+    HTableDescriptor descriptor = new HTableDescriptor("t1");
+    descriptor.addFamily(new HColumnDescriptor("map"));
+    _utility.getHBaseAdmin().createTable(descriptor, splitKeys);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    _utility.deleteTable(Bytes.toBytes("t1"));
+  }
+
+  @Test
+  public void testOrder() throws IOException {
+    HBaseNavigableMap<Integer, Integer> map = newMap();
+    assertEquals(Arrays.asList(-20, -15, -10, -5, 0, 5, 10, 15, 20), new ArrayList<Integer>(map.keySet()));
+    assertEquals(Arrays.asList(20, 15, 10, 5, 0, -5, -10, -15, -20),
+        new ArrayList<Integer>(map.descendingKeySet()));
+    assertEquals((Integer) (-20), map.firstKey());
+    assertEquals((Integer) 20, map.lastKey());
+
+    HBaseNavigableMap<Double, String> doubles = new HBaseNavigableMap<Double, String>(
+        _utility.getConfiguration(), "t1", "test2");
+    doubles.put(1.5, "a");
+    doubles.put(-0.5, "b");
+    doubles.put(-100.25, "c");
+    assertEquals(Arrays.asList(-100.25, -0.5, 1.5), new ArrayList<Double>(doubles.keySet()));
+  }
+
+  @Test
+  public void testNavigation() throws IOException {
+    HBaseNavigableMap<Integer, Integer> map = newMap();
+    assertEquals((Integer) 5, map.ceilingKey(3));
+    assertEquals((Integer) 5, map.ceilingKey(5));
+    assertEquals((Integer) 10, map.higherKey(5));
+    assertEquals((Integer) 0, map.floorKey(3));
+    assertEquals((Integer) 5, map.floorKey(5));
+    assertEquals((Integer) 0, map.lowerKey(5));
+    // crosses the region boundary at -5
+    assertEquals((Integer) (-10), map.lowerKey(-5));
+    assertNull(map.lowerKey(-20));
+    assertNull(map.higherKey(20));
+
+    Entry<Integer, Integer> first = map.pollFirstEntry();
+    assertEquals((Integer) (-20), first.getKey());
+    assertEquals((Integer) (-20), first.getValue());
+    assertEquals((Integer) (-15), map.firstKey());
+    assertEquals(8, map.size());
+  }
+
+  @Test
+  public void testViews() throws IOException {
+    HBaseNavigableMap<Integer, Integer> map = newMap();
+    ConcurrentNavigableMap<Integer, Integer> sub = map.subMap(-7, true, 10, false);
+    assertEquals(Arrays.asList(-5, 0, 5), new ArrayList<Integer>(sub.keySet()));
+    assertEquals(3, sub.size());
+    assertEquals((Integer) (-5), sub.firstKey());
+    assertEquals((Integer) 5, sub.lastKey());
+    assertNull(sub.get(10));
+    assertNull(sub.higherKey(5));
+
+    ConcurrentNavigableMap<Integer, Integer> head = map.headMap(0, true);
+    assertEquals(Arrays.asList(-20, -15, -10, -5, 0), new ArrayList<Integer>(head.keySet()));
+    ConcurrentNavigableMap<Integer, Integer> tail = map.descendingMap().tailMap(0, false);
+    assertEquals(Arrays.asList(-5, -10, -15, -20), new ArrayList<Integer>(tail.keySet()));
+
+    try {
+      sub.put(11, 11);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    sub.put(1, 1);
+    assertEquals((Integer) 1, map.get(1));
+    sub.clear();
+    assertEquals(Arrays.asList(-20, -15, -10, 10, 15, 20), new ArrayList<Integer>(map.keySet()));
+    assertEquals(6, map.size());
+  }
+
+  @Test
+  public void testTombstones() throws IOException {
+    HBaseNavigableMap<Integer, Integer> map = newMap();
+    map.setTombstoneQualifier(Bytes.toBytes("t"));
+    map.remove(20);
+    map.remove(0);
+    map.remove(-5);
+    // rows holding just a tombstone are skipped, also across the region boundary at -5
+    assertEquals((Integer) 15, map.lastKey());
+    assertEquals((Integer) (-10), map.floorKey(0));
+    assertEquals((Integer) (-10), map.lowerKey(5));
+    assertEquals(Arrays.asList(15, 10, 5, -10, -15, -20), new ArrayList<Integer>(map.descendingKeySet()));
+    assertEquals(Arrays.asList(-20, -15, -10, 5, 10, 15), new ArrayList<Integer>(map.keySet()));
+
+    assertEquals((Integer) 15, map.pollLastEntry().getKey());
+    assertEquals((Integer) 10, map.pollLastEntry().getKey());
+    assertEquals(4, map.size());
+    assertFalse(map.remove(20, null));
+    assertEquals(4, map.size());
+  }
+
+  @Test
+  public void testByteArrayKeys() throws IOException {
+    HBaseNavigableMap<byte[], Integer> map = new HBaseNavigableMap<byte[], Integer>(_utility.getConfiguration(),
+        "t1", "test3");
+    byte[] padded = new byte[18];
+    Arrays.fill(padded, 1, padded.length, (byte) 0xFF);
+    map.put(new byte[] { 0 }, 0);
+    map.put(padded, 1);
+    map.put(new byte[] { 1 }, 2);
+    // the key of 0xFF bytes sorts after the padded predecessor of { 1 }
+    assertArrayEquals(padded, map.lowerKey(new byte[] { 1 }));
+    assertArrayEquals(new byte[] { 1 }, map.lastKey());
+    assertArrayEquals(padded, map.floorKey(Arrays.copyOf(padded, 30)));
+    List<Integer> descending = new ArrayList<Integer>();
+    for (Entry<byte[], Integer> e : map.descendingMap().entrySet()) {
+      descending.add(e.getValue());
+    }
+    assertEquals(Arrays.asList(2, 1, 0), descending);
+    assertArrayEquals(new byte[] { 1 }, map.pollLastEntry().getKey());
+    assertArrayEquals(padded, map.lastKey());
+  }
+
+  private HBaseNavigableMap<Integer, Integer> newMap() {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseNavigableMap<Integer, Integer> map = new HBaseNavigableMap<Integer, Integer>(configuration, "t1", "test1");
+    List<Integer> keys = Arrays.asList(10, -10, 0, 20, -20, 5, -5, 15, -15);
+    for (Integer key : keys) {
+      map.put(key, key);
+    }
+    return map;
+  }
+
+}
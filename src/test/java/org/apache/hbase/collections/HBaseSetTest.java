@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hbase.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HBaseSetTest {
+
+  private static HBaseTestingUtility _utility;
+  private HTable _table;
+
+  @BeforeClass
+  public static void setupOnce() throws Exception {
+    _utility = new HBaseTestingUtility();
+    _utility.startMiniCluster();
+  }
+
+  @AfterClass
+  public static void shutdown() throws Exception {
+    _utility.shutdownMiniCluster();
+  }
+
+  @Before
+  public void setup() throws IOException {
+    _table = _utility.createTable(Bytes.toBytes("t1"), Bytes.toBytes("map"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    _table.close();
+    _utility.deleteTable(Bytes.toBytes("t1"));
+  }
+
+  @Test
+  public void testAddRemove() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseSet<String> set = new HBaseSet<String>(configuration, "t1", "set1");
+    assertTrue(set.isEmpty());
+    assertTrue(set.add("a"));
+    assertFalse(set.add("a"));
+    assertTrue(set.add("b"));
+    assertEquals(2, set.size());
+    assertTrue(set.contains("a"));
+    assertFalse(set.contains("c"));
+    assertFalse(set.isEmpty());
+
+    assertTrue(set.remove("a"));
+    assertFalse(set.remove("a"));
+    assertEquals(1, set.size());
+    assertFalse(set.contains("a"));
+    set.close();
+  }
+
+  @Test
+  public void testIterator() throws IOException {
+    Configuration configuration = _utility.getConfiguration();
+    HBaseSet<Integer> set = new HBaseSet<Integer>(configuration, "t1", "set1");
+    Set<Integer> expected = new HashSet<Integer>();
+    for (int i = 0; i < 250; i++) {
+      set.add(i);
+      expected.add(i);
+    }
+    assertEquals(expected, new HashSet<Integer>(set));
+    assertEquals(0, set.getMetrics().getBytesDeserialized());
+
+    // every element is a row with a single one byte cell
+    ResultScanner scanner = _table.getScanner(new Scan(Bytes.toBytes("set1|"), Bytes.toBytes("set1}")));
+    int rows = 0;
+    for (Result result : scanner) {
+      assertEquals(1, result.size());
+      assertEquals(1, result.raw()[0].getValueLength());
+      rows++;
+    }
+    scanner.close();
+    assertEquals(250, rows);
+
+    CloseableIterator<Integer> iterator = set.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next() % 2 == 0) {
+        iterator.remove();
+      }
+    }
+    assertEquals(125, set.size());
+    assertFalse(set.contains(10));
+    assertTrue(set.contains(11));
+    set.clear();
+    assertTrue(set.isEmpty());
+    assertEquals(0, set.size());
+  }
+
+}